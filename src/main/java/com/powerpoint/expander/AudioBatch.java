@@ -0,0 +1,108 @@
+package com.powerpoint.expander;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+// Generates narration for every slide of a deck with a bounded number of concurrent TTS requests.
+// Slides without text, and slides whose audio was already generated from the same text and voice, are skipped.
+public class AudioBatch {
+    private static final Logger LOGGER = Logger.getLogger(AudioBatch.class.getName());
+    private static final int DEFAULT_PARALLELISM = 3;
+
+    public enum Status { GENERATED, SKIPPED, FAILED }
+
+    public interface Listener {
+        default void onStarted(int index) {
+        }
+
+        void onFinished(int index, Status status, Exception error);
+    }
+
+    public static class Result {
+        public final int generated;
+        public final int skipped;
+        public final int failed;
+
+        Result(int generated, int skipped, int failed) {
+            this.generated = generated;
+            this.skipped = skipped;
+            this.failed = failed;
+        }
+    }
+
+    public static Path slideAudioPath(Path outputDir, int index) {
+        return outputDir.resolve("slide" + (index + 1) + ".mp3");
+    }
+
+    public static boolean isUpToDate(String text, Path outputPath) {
+        return text.trim().isEmpty() || ElevenLabsTTS.isAudioCurrent(text.trim(), outputPath);
+    }
+
+    // Generates one slide's audio unless it is already up to date; returns what was done.
+    public static Status narrateSlide(String text, Path outputPath) throws IOException {
+        if (isUpToDate(text, outputPath)) {
+            return Status.SKIPPED;
+        }
+        ElevenLabsTTS.generateSpeech(text.trim(), outputPath.toString());
+        return Status.GENERATED;
+    }
+
+    public static Result generate(List<String> slideTexts, Path outputDir, Listener listener) throws InterruptedException {
+        int parallelism = Math.max(1, Settings.getInt("tts.parallelism", DEFAULT_PARALLELISM));
+        LOGGER.info("Generating audio for " + slideTexts.size() + " slides with parallelism " + parallelism);
+
+        AtomicInteger generated = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "tts-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < slideTexts.size(); i++) {
+                int index = i;
+                String text = slideTexts.get(i).trim();
+                Path outputPath = slideAudioPath(outputDir, index);
+                futures.add(executor.submit(Job.propagate(() -> {
+                    if (isUpToDate(text, outputPath)) {
+                        skipped.incrementAndGet();
+                        listener.onFinished(index, Status.SKIPPED, null);
+                        return;
+                    }
+                    listener.onStarted(index);
+                    try {
+                        narrateSlide(text, outputPath);
+                        generated.incrementAndGet();
+                        listener.onFinished(index, Status.GENERATED, null);
+                    } catch (Exception e) {
+                        LOGGER.severe("Error generating audio for slide " + (index + 1) + ": " + e.getMessage());
+                        failed.incrementAndGet();
+                        listener.onFinished(index, Status.FAILED, e);
+                    }
+                })));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOGGER.severe("Audio task failed: " + e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        LOGGER.info("Audio batch finished: " + generated + " generated, " + skipped + " skipped, " + failed + " failed");
+        return new Result(generated.get(), skipped.get(), failed.get());
+    }
+}
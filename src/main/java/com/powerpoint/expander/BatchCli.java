@@ -0,0 +1,352 @@
+package com.powerpoint.expander;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+// Headless batch mode: "java -jar PowerPointExpander.jar batch [options] <directory|file|glob>...".
+// Every deck is expanded to <deck>.json and, unless --no-audio is given, narrated into <deck>_audio.
+public class BatchCli {
+    private static final Logger LOGGER = Logger.getLogger(BatchCli.class.getName());
+    private static final int DEFAULT_WORKERS = 2;
+    private static final int DEFAULT_MAX_TOKENS = 2000;
+    private static final String DEFAULT_MODEL = "gpt-4o-mini";
+
+    static final int EXIT_OK = 0;
+    static final int EXIT_FAILURES = 1;
+    static final int EXIT_USAGE = 2;
+
+    private final PrintStream out = System.out;
+    private final List<String> inputs = new ArrayList<>();
+    private Path outputDir;
+    private int workers = Math.max(1, Settings.getInt("batch.workers", DEFAULT_WORKERS));
+    private int maxTokens = DEFAULT_MAX_TOKENS;
+    private String model = DEFAULT_MODEL;
+    private boolean chunked = Settings.getBoolean("expansion.chunked", false);
+    private boolean audio = true;
+
+    static class DeckResult {
+        int slides;
+        boolean failed;
+        String error;
+        AudioBatch.Result audio;
+    }
+
+    public static int run(String[] args) {
+        BatchCli cli = new BatchCli();
+        try {
+            if (!cli.parseArguments(args)) {
+                return EXIT_OK;
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            printUsage(System.err);
+            return EXIT_USAGE;
+        }
+        return cli.execute();
+    }
+
+    // Returns false when there is nothing to run, as after --help.
+    private boolean parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--workers":
+                    workers = parsePositive(arg, value(args, ++i, arg));
+                    break;
+                case "--max-tokens":
+                    maxTokens = parsePositive(arg, value(args, ++i, arg));
+                    break;
+                case "--model":
+                    model = value(args, ++i, arg);
+                    break;
+                case "--out":
+                    outputDir = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--chunked":
+                    chunked = true;
+                    break;
+                case "--no-audio":
+                    audio = false;
+                    break;
+                case "--help":
+                case "-h":
+                    printUsage(out);
+                    return false;
+                default:
+                    if (arg.startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                    }
+                    inputs.add(arg);
+            }
+        }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("No input decks given");
+        }
+        return true;
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[index];
+    }
+
+    private static int parsePositive(String option, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(option + " must be a positive number: " + value);
+    }
+
+    private static void printUsage(PrintStream stream) {
+        stream.println("Usage: java -jar PowerPointExpander.jar batch [options] <directory|file.pptx|glob>...");
+        stream.println("  --workers N       decks processed at the same time (default: batch.workers setting, " + DEFAULT_WORKERS + ")");
+        stream.println("  --model NAME      OpenAI model (default: " + DEFAULT_MODEL + ")");
+        stream.println("  --max-tokens N    completion token limit (default: " + DEFAULT_MAX_TOKENS + ")");
+        stream.println("  --chunked         expand each deck in parallel chunks");
+        stream.println("  --no-audio        only write the expanded text");
+        stream.println("  --out DIR         write results to DIR instead of next to each deck");
+        stream.println("Exit codes: 0 all decks succeeded, 1 some decks failed, 2 usage or configuration error");
+    }
+
+    private int execute() {
+        List<Path> decks;
+        try {
+            decks = resolveInputs(inputs);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return EXIT_USAGE;
+        }
+        if (decks.isEmpty()) {
+            System.err.println("Error: no .pptx files matched " + String.join(" ", inputs));
+            return EXIT_USAGE;
+        }
+        if (Settings.get("openai.api.key").isEmpty()) {
+            System.err.println("Error: OpenAI API key is not set in " + Settings.getAppDir().resolve("config.properties"));
+            return EXIT_USAGE;
+        }
+        if (audio && (Settings.get("elevenlabs.api.key").isEmpty() || Settings.get("elevenlabs.voice.id").isEmpty())) {
+            System.err.println("Error: ElevenLabs API key or voice ID is not set; configure them or pass --no-audio");
+            return EXIT_USAGE;
+        }
+        if (outputDir != null) {
+            try {
+                Files.createDirectories(outputDir);
+            } catch (IOException e) {
+                System.err.println("Error: cannot create output directory " + outputDir + ": " + e.getMessage());
+                return EXIT_USAGE;
+            }
+        }
+
+        out.println("Processing " + decks.size() + " decks with " + workers + " workers (model " + model + ", max tokens " + maxTokens
+                + (chunked ? ", chunked" : "") + (audio ? "" : ", no audio") + ")");
+        long promptTokensBefore = OpenAIExpander.getPromptTokens();
+        long completionTokensBefore = OpenAIExpander.getCompletionTokens();
+        long started = System.nanoTime();
+
+        AtomicInteger finished = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "batch-deck");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<DeckResult> results = new ArrayList<>();
+        try {
+            List<Future<DeckResult>> futures = new ArrayList<>();
+            for (Path deck : decks) {
+                futures.add(executor.submit(() -> {
+                    long deckStarted = System.nanoTime();
+                    DeckResult result = processDeck(deck, outputDir != null ? outputDir : deck.toAbsolutePath().getParent(),
+                            model, maxTokens, chunked, audio);
+                    double seconds = (System.nanoTime() - deckStarted) / 1e9;
+                    synchronized (out) {
+                        out.printf(Locale.ROOT, "[%d/%d] %s: %d slides, %s in %.1f s%n", finished.incrementAndGet(), decks.size(),
+                                deck.getFileName(), result.slides, result.failed ? "FAILED (" + result.error + ")" : "ok", seconds);
+                    }
+                    return result;
+                }));
+            }
+            for (Future<DeckResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    DeckResult result = new DeckResult();
+                    result.failed = true;
+                    result.error = String.valueOf(e.getCause());
+                    results.add(result);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted");
+            return EXIT_FAILURES;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        double minutes = (System.nanoTime() - started) / 60e9;
+        int failedDecks = 0;
+        int slides = 0;
+        int audioGenerated = 0;
+        int audioSkipped = 0;
+        int audioFailed = 0;
+        for (DeckResult result : results) {
+            failedDecks += result.failed ? 1 : 0;
+            slides += result.slides;
+            if (result.audio != null) {
+                audioGenerated += result.audio.generated;
+                audioSkipped += result.audio.skipped;
+                audioFailed += result.audio.failed;
+            }
+        }
+        out.println();
+        out.printf(Locale.ROOT, "Decks:      %d processed, %d failed in %.1f min%n", results.size(), failedDecks, minutes);
+        out.printf(Locale.ROOT, "Throughput: %.2f decks/min, %.1f slides/min (%d slides)%n",
+                results.size() / Math.max(minutes, 1e-9), slides / Math.max(minutes, 1e-9), slides);
+        out.printf(Locale.ROOT, "Tokens:     %d prompt, %d completion%n",
+                OpenAIExpander.getPromptTokens() - promptTokensBefore, OpenAIExpander.getCompletionTokens() - completionTokensBefore);
+        if (audio) {
+            out.printf(Locale.ROOT, "Audio:      %d generated, %d up to date, %d failed%n", audioGenerated, audioSkipped, audioFailed);
+        }
+        out.println("HTTP:       " + HttpTransport.getStats());
+        return failedDecks > 0 ? EXIT_FAILURES : EXIT_OK;
+    }
+
+    // Expands one deck to <targetDir>/<deck>.json and, with audio, narrates it into <targetDir>/<deck>_audio.
+    static DeckResult processDeck(Path deck, Path targetDir, String model, int maxTokens, boolean chunked, boolean audio) {
+        DeckResult result = new DeckResult();
+        String deckName = deck.getFileName().toString().replaceFirst("[.][^.]+$", "");
+        try {
+            List<SlideContent> slideContents = new ArrayList<>();
+            PowerPointParser.parseSlides(deck.toFile(), (index, slide) -> {
+                slideContents.add(slide);
+                OpenAIExpander.prefetchImageDescription(slide, index + 1, maxTokens, model);
+            });
+            result.slides = slideContents.size();
+
+            DeckManifest manifest = DeckManifest.load(deck.toFile());
+            JSONObject expansion = new JSONObject(OpenAIExpander.expandDeck(manifest, slideContents, maxTokens, model, chunked));
+            if (expansion.has("error")) {
+                throw new IOException(expansion.getString("error"));
+            }
+            manifest.retain(slideContents);
+            manifest.save();
+            JSONArray slidesArray = expansion.getJSONArray("slides");
+            List<String> slideTexts = new ArrayList<>();
+            JSONArray outputSlides = new JSONArray();
+            for (int i = 0; i < slidesArray.length(); i++) {
+                String expandedContent = slidesArray.getJSONObject(i).optString("expandedContent", "");
+                slideTexts.add(expandedContent);
+                outputSlides.put(new JSONObject().put("slide", i + 1).put("expandedContent", expandedContent));
+            }
+            JSONObject output = new JSONObject()
+                    .put("source", deck.toAbsolutePath().toString())
+                    .put("model", model)
+                    .put("slides", outputSlides);
+            Path jsonPath = targetDir.resolve(deckName + ".json");
+            Path temp = Files.createTempFile(targetDir, deckName, ".json.part");
+            try {
+                Files.writeString(temp, output.toString(2));
+                ElevenLabsTTS.moveIntoPlace(temp, jsonPath);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+
+            if (audio) {
+                Path audioDir = targetDir.resolve(deckName + "_audio");
+                Files.createDirectories(audioDir);
+                result.audio = AudioBatch.generate(slideTexts, audioDir, (index, status, error) -> { });
+                if (result.audio.failed > 0) {
+                    throw new IOException(result.audio.failed + " slides failed to narrate");
+                }
+                if (DeckTrack.isEnabled()) {
+                    DeckTrack.assemble(audioDir, slideTexts.size(), deckName);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.severe("Failed to process " + deck + ": " + e.getMessage());
+            result.failed = true;
+            result.error = e.getMessage();
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return result;
+    }
+
+    // Each input is a .pptx file, a directory (its .pptx files, not recursive) or a glob such as "lectures/**/*.pptx".
+    static List<Path> resolveInputs(List<String> inputs) throws IOException {
+        TreeSet<Path> decks = new TreeSet<>();
+        for (String input : inputs) {
+            int wildcard = indexOfWildcard(input);
+            if (wildcard < 0) {
+                Path given = Paths.get(input);
+                if (Files.isDirectory(given)) {
+                    try (Stream<Path> files = Files.list(given)) {
+                        files.filter(BatchCli::isDeck).forEach(file -> decks.add(file.toAbsolutePath().normalize()));
+                    }
+                } else if (Files.isRegularFile(given) && isDeck(given)) {
+                    decks.add(given.toAbsolutePath().normalize());
+                } else {
+                    throw new IOException("Not a .pptx file or directory: " + input);
+                }
+                continue;
+            }
+
+            // Walk from the deepest directory before the first wildcard and match the full pattern
+            String prefix = input.substring(0, wildcard);
+            int separator = Math.max(prefix.lastIndexOf('/'), prefix.lastIndexOf(File.separatorChar));
+            Path base = separator >= 0 ? Paths.get(prefix.substring(0, separator + 1)) : Paths.get(".");
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+            if (!Files.isDirectory(base)) {
+                continue;
+            }
+            try (Stream<Path> files = Files.walk(base)) {
+                files.filter(file -> matcher.matches(file) || matcher.matches(file.normalize()))
+                        .filter(BatchCli::isDeck)
+                        .forEach(file -> decks.add(file.toAbsolutePath().normalize()));
+            }
+        }
+        return new ArrayList<>(decks);
+    }
+
+    private static int indexOfWildcard(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            if ("*?[{".indexOf(input.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Skips Office lock files such as "~$lecture.pptx"
+    static boolean isDeck(Path file) {
+        String name = file.getFileName().toString();
+        return Files.isRegularFile(file) && name.toLowerCase(Locale.ROOT).endsWith(".pptx") && !name.startsWith("~$");
+    }
+}
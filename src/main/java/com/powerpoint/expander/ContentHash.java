@@ -0,0 +1,64 @@
+package com.powerpoint.expander;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class ContentHash {
+
+    public static String sha256(byte[] data) {
+        return toHex(newDigest().digest(data));
+    }
+
+    public static String sha256(InputStream in) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return toHex(digest.digest());
+    }
+
+    // Hashes several values as one key. Each part is length-prefixed so ("ab", "c") and ("a", "bc") differ,
+    // and null is distinguished from an empty string.
+    public static String of(Object... parts) {
+        MessageDigest digest = newDigest();
+        for (Object part : parts) {
+            if (part == null) {
+                digest.update((byte) 0);
+                continue;
+            }
+            byte[] bytes = part.toString().getBytes(StandardCharsets.UTF_8);
+            digest.update((byte) 1);
+            digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) ':');
+            digest.update(bytes);
+        }
+        return toHex(digest.digest());
+    }
+
+    // Collapses whitespace so that re-saving a deck with different line endings or trailing spaces
+    // does not change its hash.
+    public static String normalize(String text) {
+        return text == null ? null : text.replaceAll("\\s+", " ").trim();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
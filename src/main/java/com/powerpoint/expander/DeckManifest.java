@@ -0,0 +1,157 @@
+package com.powerpoint.expander;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+// Remembers, per deck, what each slide looked like when it was last expanded and what it was expanded to,
+// including text edited by hand in the slide tabs. Slides are matched by their persistent slide id, so a
+// re-run only sends slides whose text, table or picture changed, even if slides were moved.
+public class DeckManifest {
+    private static final Logger LOGGER = Logger.getLogger(DeckManifest.class.getName());
+
+    private final Path path;
+    private final String deckPath;
+    private final Map<String, JSONObject> slidesById = new LinkedHashMap<>();
+
+    private DeckManifest(Path path, String deckPath) {
+        this.path = path;
+        this.deckPath = deckPath;
+    }
+
+    private static Path manifestPath(String deckPath) {
+        return Settings.getAppDir().resolve("manifests").resolve(ContentHash.sha256(deckPath.getBytes(StandardCharsets.UTF_8)) + ".json");
+    }
+
+    public static DeckManifest load(File deck) {
+        String deckPath = deck.getAbsoluteFile().toPath().normalize().toString();
+        Path path = manifestPath(deckPath);
+        DeckManifest manifest = new DeckManifest(path, deckPath);
+        if (Files.exists(path)) {
+            try {
+                JSONArray slides = new JSONObject(Files.readString(path)).getJSONArray("slides");
+                for (int i = 0; i < slides.length(); i++) {
+                    JSONObject slide = slides.getJSONObject(i);
+                    manifest.slidesById.put(slide.getString("slideId"), slide);
+                }
+            } catch (Exception e) {
+                LOGGER.warning("Ignoring unreadable deck manifest " + path + ": " + e.getMessage());
+                manifest.slidesById.clear();
+            }
+        }
+        return manifest;
+    }
+
+    // Deletes the manifest of a deck that will not be seen again.
+    public static void forget(File deck) {
+        Path path = manifestPath(deck.getAbsoluteFile().toPath().normalize().toString());
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.warning("Could not delete deck manifest " + path + ": " + e.getMessage());
+        }
+    }
+
+    public static String contentHash(SlideContent slide) {
+        return ContentHash.of("slide-v1", ContentHash.normalize(slide.getText()), ContentHash.normalize(slide.getTable()), slide.getImageHash());
+    }
+
+    // Anything besides the slide itself that changes what the model would write.
+    public static String settingsHash(String model, int maxTokens) {
+        return ContentHash.of("settings-v1", Settings.get("system.prompt"), model, maxTokens);
+    }
+
+    // The key a slide is stored under: its p:sldId, or a hash of its content for slides without one.
+    static String idOf(SlideContent slide) {
+        return slide.getSlideId() != null ? slide.getSlideId() : "content:" + contentHash(slide);
+    }
+
+    // The stored text for a slide whose content has not changed, or null if it must be requested again.
+    // Hand edits are kept even after the model or prompt changes; generated text is only reused with the
+    // same settings.
+    public synchronized String reusable(SlideContent slide, String settingsHash) {
+        String contentHash = contentHash(slide);
+        JSONObject entry = slidesById.get(idOf(slide));
+        if (entry == null || !contentHash.equals(entry.optString("contentHash"))) {
+            // The deck may have been re-saved by a tool that renumbers slide ids
+            entry = null;
+            for (JSONObject candidate : slidesById.values()) {
+                if (contentHash.equals(candidate.optString("contentHash"))) {
+                    entry = candidate;
+                    break;
+                }
+            }
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (entry.optBoolean("edited") || settingsHash.equals(entry.optString("settingsHash"))) {
+            return entry.optString("expandedContent", null);
+        }
+        return null;
+    }
+
+    public synchronized void recordExpansion(SlideContent slide, String settingsHash, String expandedContent) {
+        slidesById.put(idOf(slide), new JSONObject()
+                .put("slideId", idOf(slide))
+                .put("contentHash", contentHash(slide))
+                .put("settingsHash", settingsHash)
+                .put("expandedContent", expandedContent)
+                .put("edited", false));
+    }
+
+    // Stores text typed into a slide tab if it differs from what was last generated or saved.
+    public synchronized void recordEdit(String slideId, String text) {
+        JSONObject entry = slideId != null ? slidesById.get(slideId) : null;
+        // A failure notice left in the tab is not an edit, and keeping it would stop the slide being retried
+        if (entry == null || text.equals(entry.optString("expandedContent")) || text.startsWith(OpenAIExpander.FAILED_SLIDE_PREFIX)) {
+            return;
+        }
+        entry.put("expandedContent", text).put("edited", true);
+        LOGGER.info("Keeping manual edit of slide " + slideId + " in " + deckPath);
+    }
+
+    // Drops slides that are no longer in the deck.
+    public synchronized void retain(Collection<SlideContent> slides) {
+        Set<String> ids = new HashSet<>();
+        for (SlideContent slide : slides) {
+            ids.add(idOf(slide));
+        }
+        for (Iterator<String> it = slidesById.keySet().iterator(); it.hasNext(); ) {
+            if (!ids.contains(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void save() {
+        JSONArray slides = new JSONArray();
+        for (JSONObject slide : slidesById.values()) {
+            slides.put(slide);
+        }
+        JSONObject manifest = new JSONObject().put("deck", deckPath).put("slides", slides);
+        try {
+            Files.createDirectories(path.getParent());
+            Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            try {
+                Files.writeString(temp, manifest.toString(2));
+                ElevenLabsTTS.moveIntoPlace(temp, path);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Failed to save deck manifest " + path + ": " + e.getMessage());
+        }
+    }
+}
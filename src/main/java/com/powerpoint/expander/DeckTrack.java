@@ -0,0 +1,265 @@
+package com.powerpoint.expander;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+// Assembles the per-slide MP3s of a deck into one narration track with an ID3v2.3 chapter per slide.
+// Frames are copied as-is, never decoded. A manifest next to the track records what each slide contributed,
+// so a rebuild keeps the unchanged leading slides in place and only rewrites from the first change onwards.
+public class DeckTrack {
+    private static final Logger LOGGER = Logger.getLogger(DeckTrack.class.getName());
+    private static final int TAG_HEADER_SIZE = 10;
+    private static final int TAG_PADDING = 4096;
+    private static final int MAX_TOC_ENTRIES = 255;
+    private static final int NO_OFFSET = 0xFFFFFFFF;
+
+    private static class Entry {
+        final int slideNumber;
+        final String file;
+        final String key;
+        long bytes;
+        long durationMillis;
+
+        Entry(int slideNumber, String file, String key) {
+            this.slideNumber = slideNumber;
+            this.file = file;
+            this.key = key;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return Settings.getBoolean("audio.deck.track", true);
+    }
+
+    public static Path trackPath(Path audioDir, String deckName) {
+        return audioDir.resolve(deckName + ".mp3");
+    }
+
+    public static void assemble(Path audioDir, int slideCount, String deckName) throws IOException {
+        Path target = trackPath(audioDir, deckName);
+        Path manifestPath = target.resolveSibling("." + target.getFileName() + ".json");
+
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < slideCount; i++) {
+            Path slideFile = AudioBatch.slideAudioPath(audioDir, i);
+            if (Files.exists(slideFile)) {
+                // The slide files are always renamed into place, so size and mtime change whenever one is regenerated
+                String key = Files.size(slideFile) + ":" + Files.getLastModifiedTime(slideFile).toMillis();
+                entries.add(new Entry(i + 1, slideFile.getFileName().toString(), key));
+            }
+        }
+        if (entries.isEmpty()) {
+            LOGGER.info("No slide audio to assemble in " + audioDir);
+            return;
+        }
+
+        JSONObject manifest = readManifest(manifestPath);
+        List<Entry> previous = manifest != null ? readEntries(manifest) : new ArrayList<>();
+        long previousTagSize = manifest != null ? manifest.optLong("tagSize", 0) : 0;
+        long previousAudioBytes = 0;
+        for (Entry entry : previous) {
+            previousAudioBytes += entry.bytes;
+        }
+        boolean trackIntact = manifest != null && Files.exists(target) && Files.size(target) == previousTagSize + previousAudioBytes;
+
+        int unchanged = 0;
+        long unchangedBytes = 0;
+        if (trackIntact) {
+            while (unchanged < entries.size() && unchanged < previous.size()
+                    && entries.get(unchanged).file.equals(previous.get(unchanged).file)
+                    && entries.get(unchanged).key.equals(previous.get(unchanged).key)) {
+                entries.get(unchanged).bytes = previous.get(unchanged).bytes;
+                entries.get(unchanged).durationMillis = previous.get(unchanged).durationMillis;
+                unchangedBytes += entries.get(unchanged).bytes;
+                unchanged++;
+            }
+            if (unchanged == entries.size() && unchanged == previous.size()) {
+                LOGGER.info("Narration track is up to date: " + target);
+                return;
+            }
+        }
+
+        List<Entry> changed = entries.subList(unchanged, entries.size());
+        measure(audioDir, changed);
+        byte[] tag = buildTag(deckName, entries);
+
+        long tagSize;
+        if (unchanged > 0 && tag.length + TAG_HEADER_SIZE <= previousTagSize) {
+            tagSize = previousTagSize;
+            byte[] paddedTag = padTag(tag, tagSize);
+            // Drop the manifest first so an interrupted rewrite is detected and rebuilt from scratch next time
+            Files.delete(manifestPath);
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                out.truncate(tagSize + unchangedBytes);
+                out.position(tagSize + unchangedBytes);
+                appendFrames(audioDir, changed, out);
+                out.write(ByteBuffer.wrap(paddedTag), 0);
+            }
+            LOGGER.info("Updated narration track " + target + ": kept " + unchanged + " slides, rewrote " + changed.size());
+        } else {
+            tagSize = TAG_HEADER_SIZE + tag.length + TAG_PADDING;
+            Path temp = Files.createTempFile(audioDir, target.getFileName().toString(), ".part");
+            try {
+                try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    out.write(ByteBuffer.wrap(padTag(tag, tagSize)));
+                    appendFrames(audioDir, entries, out);
+                }
+                ElevenLabsTTS.moveIntoPlace(temp, target);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            LOGGER.info("Built narration track " + target + " from " + entries.size() + " slides");
+        }
+        writeManifest(manifestPath, tagSize, entries);
+    }
+
+    private static void measure(Path audioDir, List<Entry> entries) throws IOException {
+        for (Entry entry : entries) {
+            try (FileChannel in = FileChannel.open(audioDir.resolve(entry.file), StandardOpenOption.READ)) {
+                long[] range = Mp3.audioRange(in);
+                entry.bytes = range[1] - range[0];
+                entry.durationMillis = Mp3.durationMillis(in, range);
+            }
+        }
+    }
+
+    private static void appendFrames(Path audioDir, List<Entry> entries, FileChannel out) throws IOException {
+        for (Entry entry : entries) {
+            try (FileChannel in = FileChannel.open(audioDir.resolve(entry.file), StandardOpenOption.READ)) {
+                long[] range = Mp3.audioRange(in);
+                if (range[1] - range[0] != entry.bytes) {
+                    throw new IOException("Slide audio changed while building the narration track: " + entry.file);
+                }
+                Mp3.copyFrames(in, range, out);
+            }
+        }
+    }
+
+    // ID3v2.3 tag with the deck title, total length, a top-level table of contents and one CHAP frame per slide.
+    private static byte[] buildTag(String deckName, List<Entry> entries) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        long totalMillis = 0;
+        for (Entry entry : entries) {
+            totalMillis += entry.durationMillis;
+        }
+        writeFrame(frames, "TIT2", textFrame(deckName));
+        writeFrame(frames, "TLEN", textFrame(String.valueOf(totalMillis)));
+
+        if (entries.size() > MAX_TOC_ENTRIES) {
+            LOGGER.warning("Table of contents lists only the first " + MAX_TOC_ENTRIES + " of " + entries.size() + " chapters");
+        }
+        ByteArrayOutputStream toc = new ByteArrayOutputStream();
+        toc.write(nullTerminated("toc"));
+        toc.write(0x03); // top-level, ordered
+        int tocEntries = Math.min(entries.size(), MAX_TOC_ENTRIES);
+        toc.write(tocEntries);
+        for (int i = 0; i < tocEntries; i++) {
+            toc.write(nullTerminated(chapterId(entries.get(i))));
+        }
+        writeFrame(frames, "CTOC", toc.toByteArray());
+
+        long start = 0;
+        for (Entry entry : entries) {
+            ByteArrayOutputStream chapter = new ByteArrayOutputStream();
+            chapter.write(nullTerminated(chapterId(entry)));
+            ByteBuffer times = ByteBuffer.allocate(16);
+            times.putInt((int) start).putInt((int) (start + entry.durationMillis)).putInt(NO_OFFSET).putInt(NO_OFFSET);
+            chapter.write(times.array());
+            writeFrame(chapter, "TIT2", textFrame("Slide " + entry.slideNumber));
+            writeFrame(frames, "CHAP", chapter.toByteArray());
+            start += entry.durationMillis;
+        }
+        return frames.toByteArray();
+    }
+
+    // Prepends the tag header and fills the rest of tagSize with padding.
+    private static byte[] padTag(byte[] frames, long tagSize) {
+        ByteBuffer tag = ByteBuffer.allocate((int) tagSize);
+        int bodySize = (int) tagSize - TAG_HEADER_SIZE;
+        tag.put(new byte[] {'I', 'D', '3', 3, 0, 0});
+        tag.put((byte) ((bodySize >>> 21) & 0x7F)).put((byte) ((bodySize >>> 14) & 0x7F))
+                .put((byte) ((bodySize >>> 7) & 0x7F)).put((byte) (bodySize & 0x7F));
+        tag.put(frames);
+        return tag.array();
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, String id, byte[] body) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(10);
+        header.put(id.getBytes(StandardCharsets.ISO_8859_1)).putInt(body.length).putShort((short) 0);
+        out.write(header.array());
+        out.write(body);
+    }
+
+    // Encoding 1 is UTF-16 with a byte order mark, which Java's UTF-16 encoder writes.
+    private static byte[] textFrame(String text) {
+        byte[] encoded = text.getBytes(StandardCharsets.UTF_16);
+        byte[] body = new byte[encoded.length + 1];
+        body[0] = 1;
+        System.arraycopy(encoded, 0, body, 1, encoded.length);
+        return body;
+    }
+
+    private static byte[] nullTerminated(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] terminated = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, terminated, 0, bytes.length);
+        return terminated;
+    }
+
+    private static String chapterId(Entry entry) {
+        return "chp" + entry.slideNumber;
+    }
+
+    private static JSONObject readManifest(Path manifestPath) {
+        if (!Files.exists(manifestPath)) {
+            return null;
+        }
+        try {
+            return new JSONObject(Files.readString(manifestPath));
+        } catch (Exception e) {
+            LOGGER.warning("Ignoring unreadable track manifest " + manifestPath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static List<Entry> readEntries(JSONObject manifest) {
+        List<Entry> entries = new ArrayList<>();
+        JSONArray slides = manifest.optJSONArray("slides");
+        if (slides == null) {
+            return entries;
+        }
+        for (int i = 0; i < slides.length(); i++) {
+            JSONObject slide = slides.getJSONObject(i);
+            Entry entry = new Entry(slide.getInt("slide"), slide.getString("file"), slide.getString("key"));
+            entry.bytes = slide.getLong("bytes");
+            entry.durationMillis = slide.getLong("durationMillis");
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static void writeManifest(Path manifestPath, long tagSize, List<Entry> entries) throws IOException {
+        JSONArray slides = new JSONArray();
+        for (Entry entry : entries) {
+            slides.put(new JSONObject()
+                    .put("slide", entry.slideNumber)
+                    .put("file", entry.file)
+                    .put("key", entry.key)
+                    .put("bytes", entry.bytes)
+                    .put("durationMillis", entry.durationMillis));
+        }
+        JSONObject manifest = new JSONObject().put("tagSize", tagSize).put("slides", slides);
+        Files.writeString(manifestPath, manifest.toString(2));
+    }
+}
@@ -0,0 +1,204 @@
+package com.powerpoint.expander;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+// A directory of files named by content hash, kept under a size limit by evicting the least recently
+// used entries. Recency survives restarts through the files' modification times. Entries are always
+// copied in and out rather than linked, so touching an entry never changes a file outside the cache and
+// editing an output file never changes the cache.
+public class DiskCache {
+    private static final Logger LOGGER = Logger.getLogger(DiskCache.class.getName());
+
+    private final Path directory;
+    private final String suffix;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long totalBytes;
+
+    public DiskCache(Path directory, String suffix, long maxBytes) {
+        this.directory = directory;
+        this.suffix = suffix;
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    private void load() {
+        try {
+            Files.createDirectories(directory);
+            List<Path> files = new ArrayList<>();
+            try (Stream<Path> stream = Files.list(directory)) {
+                stream.filter(path -> path.getFileName().toString().endsWith(suffix)).forEach(files::add);
+            }
+            files.sort(Comparator.comparing(DiskCache::lastModified));
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long size = Files.size(file);
+                entries.put(name.substring(0, name.length() - suffix.length()), size);
+                totalBytes += size;
+            }
+            LOGGER.info("Loaded " + entries.size() + " cache entries (" + totalBytes + " bytes) from " + directory);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to load cache directory " + directory + ": " + e.getMessage());
+        }
+    }
+
+    // Returns the cached file for the key, or null on a miss.
+    public Path lookup(String key) {
+        Path file = pathFor(key);
+        synchronized (this) {
+            if (entries.get(key) == null || !Files.exists(file)) {
+                removeEntry(key);
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            LOGGER.fine("Could not touch cache entry " + file + ": " + e.getMessage());
+        }
+        hits.incrementAndGet();
+        return file;
+    }
+
+    // Checks for an entry without counting a hit or miss or refreshing its recency.
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key) && Files.exists(pathFor(key));
+    }
+
+    public String getString(String key) {
+        Path file = lookup(key);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return Files.readString(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to read cache entry " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void putString(String key, String value) {
+        put(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void put(String key, byte[] data) {
+        Path file = pathFor(key);
+        try {
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            Files.write(temp, data);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            added(key, data.length);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to write cache entry " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Stores a copy of an existing file.
+    public void putFile(String key, Path source) {
+        Path file = pathFor(key);
+        try {
+            Path temp = directory.resolve(key + "." + System.nanoTime() + ".tmp");
+            Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            added(key, Files.size(file));
+        } catch (IOException e) {
+            LOGGER.warning("Failed to write cache entry " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Places a copy of a cached entry at target (copy, then rename). Returns false on a miss.
+    public boolean copyTo(String key, Path target) throws IOException {
+        Path file = lookup(key);
+        if (file == null) {
+            return false;
+        }
+        Path temp = target.resolveSibling(target.getFileName() + "." + System.nanoTime() + ".tmp");
+        try {
+            Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            // Evicted between lookup and copy
+            return false;
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return true;
+    }
+
+    private synchronized void added(String key, long size) {
+        removeEntry(key);
+        entries.put(key, size);
+        totalBytes += size;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= eldest.getValue();
+            try {
+                Files.deleteIfExists(pathFor(eldest.getKey()));
+            } catch (IOException e) {
+                LOGGER.warning("Failed to evict cache entry " + eldest.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void removeEntry(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+    }
+
+    public Path pathFor(String key) {
+        return directory.resolve(key + suffix);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
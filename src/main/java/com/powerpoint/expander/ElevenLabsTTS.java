@@ -3,72 +3,349 @@ package com.powerpoint.expander;
 import okhttp3.*;
 import org.json.JSONObject;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.logging.Logger;
+import java.nio.file.StandardCopyOption;
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 public class ElevenLabsTTS {
     private static final Logger LOGGER = Logger.getLogger(ElevenLabsTTS.class.getName());
     private static final int MAX_RETRIES = 3;
-    private static final int TIMEOUT_SECONDS = 60;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final Metrics.Timer SPEECH_TIMER = Metrics.timer("elevenlabs.generateSpeech");
+    private static final String MODEL_ID = "eleven_multilingual_v2";
+    private static final double STABILITY = 0.5;
+    private static final double SIMILARITY_BOOST = 0.5;
+    private static final int DEFAULT_AUDIO_CACHE_MB = 500;
+    private static final int DEFAULT_CHUNK_CHARS = 1000;
+    private static final int MIN_CHUNK_CHARS = 100;
+    private static final int DEFAULT_CHUNK_PARALLELISM = 4;
+    private static DiskCache audioCache;
+    private static ThreadPoolExecutor chunkExecutor;
 
     public static void generateSpeech(String text, String outputPath) throws IOException {
+        Metrics.Sample sample = SPEECH_TIMER.start();
+        try {
+            speak(text, outputPath);
+        } finally {
+            sample.close();
+        }
+    }
+
+    private static void speak(String text, String outputPath) throws IOException {
         LOGGER.info("Generating speech for text: " + text.substring(0, Math.min(text.length(), 50)) + "...");
         LOGGER.info("Output path: " + outputPath);
 
-        OkHttpClient client = new OkHttpClient.Builder()
-            .connectTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
-            .writeTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
-            .readTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
-            .build();
-
-        MediaType mediaType = MediaType.parse("application/json");
-        JSONObject requestBody = new JSONObject();
-        requestBody.put("text", text);
-        requestBody.put("model_id", "eleven_multilingual_v2");
-        requestBody.put("voice_settings", new JSONObject().put("stability", 0.5).put("similarity_boost", 0.5));
-
-        RequestBody body = RequestBody.create(requestBody.toString(), mediaType);
-        Request request = new Request.Builder()
-                .url("https://api.elevenlabs.io/v1/text-to-speech/" + getVoiceId())
-                .post(body)
-                .addHeader("Accept", "audio/mpeg")
-                .addHeader("Content-Type", "application/json")
-                .addHeader("xi-api-key", getApiKey())
-                .build();
-
-        for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
-            try (Response response = client.newCall(request).execute()) {
-                if (!response.isSuccessful()) {
-                    LOGGER.warning("Failed to generate speech. Response code: " + response.code());
-                    LOGGER.warning("Response body: " + response.body().string());
-                    if (attempt == MAX_RETRIES) {
-                        throw new IOException("Failed to generate speech after " + MAX_RETRIES + " attempts: " + response.code() + " " + response.message());
+        Path target = Paths.get(outputPath);
+        DiskCache cache = getAudioCache();
+        String audioKey = audioKey(text);
+        if (cache != null && cache.copyTo(audioKey, target)) {
+            Files.writeString(hashPathFor(target), audioKey);
+            LOGGER.info("Reused cached audio for " + outputPath + " (cache hits: " + cache.getHits() + ", misses: " + cache.getMisses() + ")");
+            return;
+        }
+
+        Metrics.counter("elevenlabs.characters").add(text.length());
+        List<String> chunks = splitIntoChunks(text, getChunkChars());
+        if (chunks.size() == 1) {
+            synthesize(text, null, null, target);
+        } else {
+            synthesizeChunks(chunks, target);
+        }
+
+        Files.writeString(hashPathFor(target), audioKey);
+        if (cache != null) {
+            cache.putFile(audioKey, target);
+        }
+        LOGGER.info("Speech generated successfully and saved to: " + outputPath);
+        LOGGER.info("HTTP connections: " + HttpTransport.getStats());
+    }
+
+    // Synthesizes each chunk into its own part file in parallel and joins the frames once all are done.
+    // Every chunk retries on its own, so a failure never re-requests chunks that already succeeded.
+    private static void synthesizeChunks(List<String> chunks, Path target) throws IOException {
+        LOGGER.info("Synthesizing " + chunks.size() + " chunks for " + target);
+        Path directory = target.toAbsolutePath().getParent();
+        List<Path> parts = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            ExecutorService executor = getChunkExecutor();
+            for (int i = 0; i < chunks.size(); i++) {
+                Path part = Files.createTempFile(directory, target.getFileName() + ".chunk" + i + "-", ".part");
+                parts.add(part);
+                String chunk = chunks.get(i);
+                String previousText = i > 0 ? chunks.get(i - 1) : null;
+                String nextText = i < chunks.size() - 1 ? chunks.get(i + 1) : null;
+                futures.add(executor.submit(Job.propagate(() -> {
+                    synthesize(chunk, previousText, nextText, part);
+                    return null;
+                })));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("Failed to generate speech: " + cause.getMessage(), cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while generating speech");
+                }
+            }
+
+            Path joined = Files.createTempFile(directory, target.getFileName().toString(), ".part");
+            try {
+                Mp3.concat(parts, joined);
+                moveIntoPlace(joined, target);
+            } finally {
+                Files.deleteIfExists(joined);
+            }
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            for (Path part : parts) {
+                Files.deleteIfExists(part);
+            }
+        }
+    }
+
+    // Sends one request and streams the audio to target. The neighbouring chunks are passed as context so
+    // intonation stays continuous across chunk boundaries.
+    private static void synthesize(String text, String previousText, String nextText, Path target) throws IOException {
+        PipelineEvents.TtsSynthesis event = new PipelineEvents.TtsSynthesis();
+        event.begin();
+        int attempts = 0;
+        int httpStatus = 0;
+        long audioBytes = 0;
+        try {
+            OkHttpClient client = HttpTransport.okHttp();
+
+            MediaType mediaType = MediaType.parse("application/json");
+            JSONObject requestBody = new JSONObject();
+            requestBody.put("text", text);
+            requestBody.put("model_id", MODEL_ID);
+            requestBody.put("voice_settings", new JSONObject().put("stability", STABILITY).put("similarity_boost", SIMILARITY_BOOST));
+            if (previousText != null) {
+                requestBody.put("previous_text", previousText);
+            }
+            if (nextText != null) {
+                requestBody.put("next_text", nextText);
+            }
+
+            RequestBody body = RequestBody.create(requestBody.toString(), mediaType);
+            Request request = new Request.Builder()
+                    .url("https://api.elevenlabs.io/v1/text-to-speech/" + getVoiceId() + (useStreamingEndpoint() ? "/stream" : ""))
+                    .post(body)
+                    .addHeader("Accept", "audio/mpeg")
+                    .addHeader("Content-Type", "application/json")
+                    .addHeader("xi-api-key", getApiKey())
+                    .build();
+
+            // Rate limits and server errors are retried with backoff by the shared client; this loop only retries
+            // connections that broke, including in the middle of the audio stream
+            for (int attempt = 1; ; attempt++) {
+                String failure;
+                attempts = attempt;
+                try (Response response = client.newCall(request).execute()) {
+                    httpStatus = response.code();
+                    if (response.isSuccessful() && response.body() != null) {
+                        audioBytes = writeAudio(response.body(), target);
+                        return;
+                    }
+                    failure = response.code() + " " + response.message() + (response.body() != null ? ": " + response.body().string() : "");
+                } catch (IOException e) {
+                    if (Job.isCurrentCancelled()) {
+                        throw new InterruptedIOException("Speech generation was cancelled");
+                    }
+                    if (attempt == MAX_RETRIES || e instanceof InterruptedIOException) {
+                        throw e;
+                    }
+                    long delay = RateLimiter.backoffMillis(attempt);
+                    Metrics.counter("elevenlabs.retries").increment();
+                    LOGGER.warning("Attempt " + attempt + " failed: " + e.getMessage() + ", retrying in " + delay + " ms");
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while generating speech");
                     }
-                    LOGGER.info("Retrying... (Attempt " + (attempt + 1) + " of " + MAX_RETRIES + ")");
                     continue;
                 }
+                LOGGER.warning("Failed to generate speech: " + failure);
+                throw new IOException("Failed to generate speech: " + failure);
+            }
+        } catch (IOException | RuntimeException e) {
+            event.error = e.getMessage();
+            throw e;
+        } finally {
+            if (event.shouldCommit()) {
+                event.characters = text.length();
+                event.attempts = attempts;
+                event.httpStatus = httpStatus;
+                event.audioBytes = audioBytes;
+                event.commit();
+            }
+        }
+    }
 
-                ResponseBody responseBody = response.body();
-                if (responseBody != null) {
-                    Files.write(Paths.get(outputPath), responseBody.bytes());
-                    LOGGER.info("Speech generated successfully and saved to: " + outputPath);
-                    return;
-                } else {
-                    LOGGER.severe("Response body is null");
-                    throw new IOException("Failed to generate speech: Response body is null");
+    // Groups whole sentences into chunks of at most maxChars. A sentence longer than that is split at
+    // the last space that fits.
+    static List<String> splitIntoChunks(String text, int maxChars) {
+        List<String> chunks = new ArrayList<>();
+        if (text.length() <= maxChars) {
+            chunks.add(text);
+            return chunks;
+        }
+
+        BreakIterator sentences = BreakIterator.getSentenceInstance(Locale.ROOT);
+        sentences.setText(text);
+        StringBuilder current = new StringBuilder();
+        int start = sentences.first();
+        for (int end = sentences.next(); end != BreakIterator.DONE; start = end, end = sentences.next()) {
+            String sentence = text.substring(start, end);
+            if (current.length() + sentence.length() > maxChars && current.length() > 0) {
+                chunks.add(current.toString().trim());
+                current.setLength(0);
+            }
+            while (sentence.length() > maxChars) {
+                int split = sentence.lastIndexOf(' ', maxChars);
+                if (split <= 0) {
+                    split = maxChars;
                 }
-            } catch (IOException e) {
-                if (attempt == MAX_RETRIES) {
-                    throw e;
+                chunks.add(sentence.substring(0, split).trim());
+                sentence = sentence.substring(split);
+            }
+            current.append(sentence);
+        }
+        if (current.toString().trim().length() > 0) {
+            chunks.add(current.toString().trim());
+        }
+        return chunks;
+    }
+
+    private static synchronized ThreadPoolExecutor getChunkExecutor() {
+        int parallelism = Math.max(1, Settings.getInt("tts.chunk.parallelism", DEFAULT_CHUNK_PARALLELISM));
+        if (chunkExecutor == null) {
+            chunkExecutor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread thread = new Thread(r, "tts-chunk");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            chunkExecutor.allowCoreThreadTimeOut(true);
+        } else if (parallelism > chunkExecutor.getMaximumPoolSize()) {
+            chunkExecutor.setMaximumPoolSize(parallelism);
+            chunkExecutor.setCorePoolSize(parallelism);
+        } else if (parallelism < chunkExecutor.getMaximumPoolSize()) {
+            chunkExecutor.setCorePoolSize(parallelism);
+            chunkExecutor.setMaximumPoolSize(parallelism);
+        }
+        return chunkExecutor;
+    }
+
+    // Returns the shared audio cache, or null when caching is turned off in Settings.
+    private static synchronized DiskCache getAudioCache() {
+        if (!Settings.getBoolean("cache.audio.enabled", true)) {
+            return null;
+        }
+        if (audioCache == null) {
+            long maxBytes = Settings.getInt("cache.audio.max.mb", DEFAULT_AUDIO_CACHE_MB) * 1024L * 1024L;
+            audioCache = new DiskCache(Settings.getAppDir().resolve("cache").resolve("audio"), ".mp3", maxBytes);
+        }
+        return audioCache;
+    }
+
+    // Identifies the audio a request would produce: voice, model, voice settings and normalized text.
+    // The chunk budget decides where long text is split and stitched, so it is part of the key; text that fits
+    // in one request sounds the same under any budget and keeps its cached audio when the budget changes.
+    static String audioKey(String text) {
+        int chunkChars = getChunkChars();
+        int split = text.length() > chunkChars ? chunkChars : 0;
+        return ContentHash.of("tts-v2", getVoiceId(), MODEL_ID, STABILITY, SIMILARITY_BOOST, split, ContentHash.normalize(text));
+    }
+
+    private static int getChunkChars() {
+        return Math.max(MIN_CHUNK_CHARS, Settings.getInt("tts.chunk.chars", DEFAULT_CHUNK_CHARS));
+    }
+
+    // True if the file at outputPath was generated from this text with the current voice and settings.
+    public static boolean isAudioCurrent(String text, Path outputPath) {
+        Path hashPath = hashPathFor(outputPath);
+        if (!Files.exists(outputPath) || !Files.exists(hashPath)) {
+            return false;
+        }
+        try {
+            return Files.readString(hashPath).trim().equals(audioKey(text));
+        } catch (IOException e) {
+            LOGGER.warning("Could not read audio hash " + hashPath + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static Path hashPathFor(Path outputPath) {
+        return outputPath.resolveSibling("." + outputPath.getFileName() + ".sha256");
+    }
+
+    // Streams the audio into a temporary file next to the target and renames it into place once complete,
+    // so a partial download never replaces a good file and the MP3 is never held in memory as a whole.
+    // Returns the number of bytes written.
+    private static long writeAudio(ResponseBody responseBody, Path target) throws IOException {
+        Path directory = target.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, target.getFileName().toString(), ".part");
+        long started = System.nanoTime();
+        long total = 0;
+        try {
+            try (InputStream in = responseBody.byteStream(); OutputStream out = Files.newOutputStream(temp)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (total == 0) {
+                        LOGGER.info("First audio bytes received after " + (System.nanoTime() - started) / 1_000_000 + " ms");
+                    }
+                    out.write(buffer, 0, read);
+                    total += read;
                 }
-                LOGGER.warning("Attempt " + attempt + " failed: " + e.getMessage());
-                LOGGER.info("Retrying... (Attempt " + (attempt + 1) + " of " + MAX_RETRIES + ")");
             }
+            moveIntoPlace(temp, target);
+            LOGGER.info("Wrote " + total + " bytes of audio in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+            return total;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
+    // The streaming endpoint starts sending audio while the rest is still being generated.
+    private static boolean useStreamingEndpoint() {
+        return Settings.getBoolean("elevenlabs.streaming", true);
+    }
+
     private static String getApiKey() {
         String key = Settings.get("elevenlabs.api.key");
         if (key.isEmpty()) {
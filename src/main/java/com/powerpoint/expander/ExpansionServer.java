@@ -0,0 +1,550 @@
+package com.powerpoint.expander;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// Server mode: "java -jar PowerPointExpander.jar serve [--port N] [--bind ADDRESS]". Exposes parse, expand
+// and narrate jobs over a small REST API, so one process serves many users with one set of API keys,
+// caches, connection pools and rate limiters:
+//
+//   POST   /jobs?type=expand|narrate|parse[&model=..&maxTokens=..&chunked=true&name=..]   body: the .pptx
+//   GET    /jobs                      the caller's jobs
+//   GET    /jobs/{id}                 state, progress and (when done) the result
+//   GET    /jobs/{id}/events          progress as server-sent events, from Last-Event-ID on
+//   GET    /jobs/{id}/audio[/{slide}] the narration track or one slide's audio
+//   DELETE /jobs/{id}                 cancel
+//   GET    /health                    queue and engine statistics
+//
+// Each tenant has its own bearer token (server.tenants.<name>.token), so the token decides whose jobs a caller
+// sees; the single server.api.token, or no token at all, means the "default" tenant. Jobs wait in one FIFO
+// queue and run on a fixed number of workers, with at most server.tenant.max.jobs running per tenant so one
+// user cannot take every worker.
+public class ExpansionServer {
+    private static final Logger LOGGER = Logger.getLogger(ExpansionServer.class.getName());
+    private static final int DEFAULT_PORT = 8765;
+    private static final String DEFAULT_BIND = "127.0.0.1";
+    private static final int DEFAULT_WORKERS = 4;
+    private static final int DEFAULT_TENANT_MAX_JOBS = 2;
+    private static final int DEFAULT_TENANT_MAX_QUEUED = 20;
+    private static final int DEFAULT_MAX_UPLOAD_MB = 100;
+    private static final int DEFAULT_RETENTION_MINUTES = 60;
+    private static final int DEFAULT_MAX_TOKENS = 2000;
+    private static final String DEFAULT_MODEL = "gpt-4o-mini";
+    private static final long EVENT_KEEPALIVE_MILLIS = 15_000;
+    private static final Pattern TENANT = Pattern.compile("[A-Za-z0-9_.@-]{1,64}");
+    private static final String TENANT_PREFIX = "server.tenants.";
+    private static final String TOKEN_SUFFIX = ".token";
+    private static final String DEFAULT_TENANT = "default";
+
+    private final Path jobsDir = Settings.getAppDir().resolve("server").resolve("jobs");
+    private final int workers = Math.max(1, Settings.getInt("server.workers", DEFAULT_WORKERS));
+    private final int tenantMaxJobs = Math.max(1, Settings.getInt("server.tenant.max.jobs", DEFAULT_TENANT_MAX_JOBS));
+    private final int tenantMaxQueued = Math.max(1, Settings.getInt("server.tenant.max.queued", DEFAULT_TENANT_MAX_QUEUED));
+    private final long maxUploadBytes = Math.max(1, Settings.getInt("server.max.upload.mb", DEFAULT_MAX_UPLOAD_MB)) * 1024L * 1024L;
+    private final long retentionMillis = Math.max(1, Settings.getInt("server.job.retention.minutes", DEFAULT_RETENTION_MINUTES)) * 60_000L;
+    private final String apiToken = Settings.get("server.api.token");
+    private final Map<String, String> tenantTokens = loadTenantTokens();
+
+    // All jobs by id in submission order; the queue and the per-tenant counts are guarded by this map
+    private final Map<String, ServerJob> jobs = new LinkedHashMap<>();
+    private final List<ServerJob> queue = new ArrayList<>();
+    private final Map<String, Integer> runningByTenant = new HashMap<>();
+    // Queue slots taken by submissions whose upload is still being received
+    private final Map<String, Integer> uploadingByTenant = new HashMap<>();
+    private int running;
+
+    private final ExecutorService jobExecutor = Executors.newFixedThreadPool(workers, r -> {
+        Thread thread = new Thread(r, "server-job");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private HttpServer server;
+
+    public static int run(String[] args) {
+        int port = Settings.getInt("server.port", DEFAULT_PORT);
+        String bind = Settings.get("server.bind").isEmpty() ? DEFAULT_BIND : Settings.get("server.bind");
+        for (int i = 0; i < args.length; i++) {
+            if ((args[i].equals("--port") || args[i].equals("--bind")) && i + 1 < args.length) {
+                if (args[i].equals("--port")) {
+                    try {
+                        port = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Error: --port must be a number: " + args[i]);
+                        return BatchCli.EXIT_USAGE;
+                    }
+                } else {
+                    bind = args[++i];
+                }
+            } else if (args[i].equals("--help") || args[i].equals("-h")) {
+                printUsage(System.out);
+                return BatchCli.EXIT_OK;
+            } else {
+                System.err.println("Error: unknown argument " + args[i]);
+                printUsage(System.err);
+                return BatchCli.EXIT_USAGE;
+            }
+        }
+        if (Settings.get("openai.api.key").isEmpty()) {
+            System.err.println("Error: OpenAI API key is not set in " + Settings.getAppDir().resolve("config.properties"));
+            return BatchCli.EXIT_USAGE;
+        }
+
+        ExpansionServer expansionServer = new ExpansionServer();
+        try {
+            expansionServer.start(bind, port);
+        } catch (IOException e) {
+            System.err.println("Error: cannot listen on " + bind + ":" + port + ": " + e.getMessage());
+            return BatchCli.EXIT_USAGE;
+        }
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            expansionServer.stop();
+            stopped.countDown();
+        }, "server-shutdown"));
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return BatchCli.EXIT_OK;
+    }
+
+    private static void printUsage(PrintStream stream) {
+        stream.println("Usage: java -jar PowerPointExpander.jar serve [--port N] [--bind ADDRESS]");
+        stream.println("  --port N          port to listen on (default: server.port setting, " + DEFAULT_PORT + ")");
+        stream.println("  --bind ADDRESS    address to listen on (default: server.bind setting, " + DEFAULT_BIND + ")");
+    }
+
+    void start(String bind, int port) throws IOException {
+        Files.createDirectories(jobsDir);
+        server = HttpServer.create(new InetSocketAddress(bind, port), 0);
+        server.createContext("/jobs", this::handleJobs);
+        server.createContext("/health", this::handleHealth);
+        // Event streams hold their thread for the life of a job, so requests get a thread each
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "server-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        boolean tokenRequired = !apiToken.isEmpty() || !tenantTokens.isEmpty();
+        LOGGER.info("Listening on http://" + bind + ":" + port + " with " + workers + " workers, at most " + tenantMaxJobs
+                + " running jobs per tenant, " + tenantTokens.size() + " tenant tokens"
+                + (tokenRequired ? ", API token required" : ", no API token required"));
+    }
+
+    void stop() {
+        LOGGER.info("Stopping server");
+        server.stop(1);
+        List<ServerJob> all;
+        synchronized (jobs) {
+            all = new ArrayList<>(jobs.values());
+        }
+        for (ServerJob job : all) {
+            job.cancel();
+        }
+        jobExecutor.shutdown();
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try {
+            String tenant = authenticate(exchange);
+            if (tenant == null) {
+                return;
+            }
+            String[] parts = exchange.getRequestURI().getPath().replaceAll("/+$", "").split("/");
+            // parts: "", "jobs", id, "events" | "audio", slide
+            String method = exchange.getRequestMethod();
+            if (parts.length == 2) {
+                if (method.equals("POST")) {
+                    submit(exchange, tenant);
+                } else if (method.equals("GET")) {
+                    listJobs(exchange, tenant);
+                } else {
+                    sendError(exchange, 405, "Method not allowed");
+                }
+                return;
+            }
+
+            ServerJob job = findJob(parts[2], tenant);
+            if (job == null) {
+                sendError(exchange, 404, "No such job: " + parts[2]);
+            } else if (parts.length == 3 && method.equals("GET")) {
+                sendJson(exchange, 200, job.toJson(true));
+            } else if (parts.length == 3 && method.equals("DELETE")) {
+                boolean cancelled = job.cancel();
+                schedule();
+                sendJson(exchange, cancelled ? 202 : 409, job.toJson(false));
+            } else if (parts.length == 4 && parts[3].equals("events") && method.equals("GET")) {
+                streamEvents(exchange, job);
+            } else if (parts.length >= 4 && parts[3].equals("audio") && method.equals("GET")) {
+                sendAudio(exchange, job, parts.length > 4 ? parts[4] : null);
+            } else {
+                sendError(exchange, 404, "Not found");
+            }
+        } catch (Exception e) {
+            LOGGER.warning("Request " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + " failed: " + e);
+            sendError(exchange, 500, String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        try {
+            if (authenticate(exchange) == null) {
+                return;
+            }
+            JSONObject health;
+            synchronized (jobs) {
+                health = new JSONObject()
+                        .put("jobs", jobs.size())
+                        .put("queued", queue.size())
+                        .put("running", running)
+                        .put("workers", workers)
+                        .put("runningByTenant", new JSONObject(runningByTenant));
+            }
+            health.put("promptTokens", OpenAIExpander.getPromptTokens())
+                    .put("completionTokens", OpenAIExpander.getCompletionTokens())
+                    .put("expansionCache", new JSONObject().put("hits", OpenAIExpander.getCacheHits()).put("misses", OpenAIExpander.getCacheMisses()))
+                    .put("openaiLimiter", RateLimiter.forProvider("openai").getStats())
+                    .put("elevenlabsLimiter", RateLimiter.forProvider("elevenlabs").getStats())
+                    .put("http", HttpTransport.getStats())
+                    .put("metrics", Metrics.snapshot());
+            sendJson(exchange, 200, health);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Tenant names by token, from the server.tenants.<name>.token settings.
+    private static Map<String, String> loadTenantTokens() {
+        Map<String, String> tokens = new HashMap<>();
+        for (String key : Settings.getKeys(TENANT_PREFIX)) {
+            if (!key.endsWith(TOKEN_SUFFIX)) {
+                continue;
+            }
+            String tenant = key.substring(TENANT_PREFIX.length(), key.length() - TOKEN_SUFFIX.length());
+            String token = Settings.get(key).trim();
+            if (!TENANT.matcher(tenant).matches() || token.isEmpty()) {
+                LOGGER.warning("Ignoring " + key + ": the tenant name or the token is not valid");
+            } else if (tokens.putIfAbsent(token, tenant) != null) {
+                LOGGER.warning("Ignoring " + key + ": tenant " + tokens.get(token) + " already has this token");
+            }
+        }
+        return tokens;
+    }
+
+    // Returns the tenant the caller's token belongs to, or null after answering with an error.
+    private String authenticate(HttpExchange exchange) throws IOException {
+        if (apiToken.isEmpty() && tenantTokens.isEmpty()) {
+            return DEFAULT_TENANT;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        byte[] presented = (authorization != null && authorization.startsWith("Bearer ")
+                ? authorization.substring("Bearer ".length()).trim() : "").getBytes(StandardCharsets.UTF_8);
+        // Every token is compared in constant time, so the response time does not reveal a near match
+        String tenant = null;
+        for (Map.Entry<String, String> entry : tenantTokens.entrySet()) {
+            if (MessageDigest.isEqual(presented, entry.getKey().getBytes(StandardCharsets.UTF_8))) {
+                tenant = entry.getValue();
+            }
+        }
+        if (!apiToken.isEmpty() && MessageDigest.isEqual(presented, apiToken.getBytes(StandardCharsets.UTF_8))) {
+            tenant = DEFAULT_TENANT;
+        }
+        if (presented.length == 0 || tenant == null) {
+            sendError(exchange, 401, "Missing or wrong API token");
+            return null;
+        }
+        return tenant;
+    }
+
+    private void submit(HttpExchange exchange, String tenant) throws IOException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        ServerJob.Type type;
+        try {
+            type = ServerJob.Type.valueOf(query.getOrDefault("type", "expand").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, "type must be parse, expand or narrate");
+            return;
+        }
+        if (type == ServerJob.Type.NARRATE && (Settings.get("elevenlabs.api.key").isEmpty() || Settings.get("elevenlabs.voice.id").isEmpty())) {
+            sendError(exchange, 503, "Narration is not configured on this server");
+            return;
+        }
+        int maxTokens;
+        try {
+            maxTokens = Integer.parseInt(query.getOrDefault("maxTokens", String.valueOf(DEFAULT_MAX_TOKENS)));
+        } catch (NumberFormatException e) {
+            maxTokens = -1;
+        }
+        if (maxTokens <= 0) {
+            sendError(exchange, 400, "maxTokens must be a positive number");
+            return;
+        }
+        String model = query.getOrDefault("model", DEFAULT_MODEL);
+        boolean chunked = Boolean.parseBoolean(query.getOrDefault("chunked", String.valueOf(Settings.getBoolean("expansion.chunked", false))));
+        String name = query.getOrDefault("name", "deck.pptx");
+
+        // The slot is taken before the upload, so concurrent uploads cannot all pass the limit
+        synchronized (jobs) {
+            evictExpired();
+            long queued = queue.stream().filter(job -> job.tenant.equals(tenant)).count()
+                    + uploadingByTenant.getOrDefault(tenant, 0);
+            if (queued >= tenantMaxQueued) {
+                exchange.getResponseHeaders().set("Retry-After", "30");
+                sendError(exchange, 429, "Tenant " + tenant + " already has " + queued + " queued jobs");
+                return;
+            }
+            uploadingByTenant.merge(tenant, 1, Integer::sum);
+        }
+
+        String id = UUID.randomUUID().toString();
+        Path dir = jobsDir.resolve(id);
+        ServerJob job = new ServerJob(id, tenant, type, name, dir, model, maxTokens, chunked);
+        boolean received = false;
+        try {
+            Files.createDirectories(dir);
+            receiveUpload(exchange, job.deckFile().toPath());
+            received = true;
+        } catch (IOException e) {
+            deleteRecursively(dir);
+            sendError(exchange, 400, e.getMessage());
+            return;
+        } finally {
+            synchronized (jobs) {
+                uploadingByTenant.merge(tenant, -1, Integer::sum);
+                uploadingByTenant.remove(tenant, 0);
+                if (received) {
+                    jobs.put(id, job);
+                    queue.add(job);
+                }
+            }
+        }
+        LOGGER.info("Queued " + type.name().toLowerCase(Locale.ROOT) + " job " + id + " for tenant " + tenant + " (" + name + ")");
+        schedule();
+        exchange.getResponseHeaders().set("Location", "/jobs/" + id);
+        sendJson(exchange, 202, job.toJson(false));
+    }
+
+    private void receiveUpload(HttpExchange exchange, Path target) throws IOException {
+        long received = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = exchange.getRequestBody(); OutputStream out = Files.newOutputStream(target)) {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                received += read;
+                if (received > maxUploadBytes) {
+                    throw new IOException("Upload is larger than " + maxUploadBytes / (1024 * 1024) + " MB");
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+        // A .pptx is a zip archive
+        byte[] header = new byte[2];
+        try (InputStream in = Files.newInputStream(target)) {
+            if (received < 2 || in.read(header) != 2 || header[0] != 'P' || header[1] != 'K') {
+                throw new IOException("Request body is not a .pptx file");
+            }
+        }
+    }
+
+    // Starts queued jobs in submission order, skipping tenants that are at their limit, while workers are free.
+    private void schedule() {
+        synchronized (jobs) {
+            for (Iterator<ServerJob> it = queue.iterator(); it.hasNext() && running < workers; ) {
+                ServerJob job = it.next();
+                if (job.getState() != ServerJob.State.QUEUED) {
+                    it.remove();
+                    continue;
+                }
+                if (runningByTenant.getOrDefault(job.tenant, 0) >= tenantMaxJobs) {
+                    continue;
+                }
+                it.remove();
+                running++;
+                runningByTenant.merge(job.tenant, 1, Integer::sum);
+                jobExecutor.execute(() -> {
+                    try {
+                        job.run();
+                    } finally {
+                        synchronized (jobs) {
+                            running--;
+                            runningByTenant.merge(job.tenant, -1, Integer::sum);
+                            runningByTenant.remove(job.tenant, 0);
+                        }
+                        LOGGER.info("Job " + job.id + " for tenant " + job.tenant + " finished: " + job.getState());
+                        schedule();
+                    }
+                });
+            }
+        }
+    }
+
+    // Drops finished jobs and their files once they are older than the retention period.
+    private void evictExpired() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        for (Iterator<ServerJob> it = jobs.values().iterator(); it.hasNext(); ) {
+            ServerJob job = it.next();
+            if (job.isFinished() && job.getFinishedAt() < cutoff) {
+                it.remove();
+                Job.forget(job.deckFile());
+                DeckManifest.forget(job.deckFile());
+                deleteRecursively(job.dir);
+            }
+        }
+    }
+
+    private ServerJob findJob(String id, String tenant) {
+        synchronized (jobs) {
+            ServerJob job = jobs.get(id);
+            return job != null && job.tenant.equals(tenant) ? job : null;
+        }
+    }
+
+    private void listJobs(HttpExchange exchange, String tenant) throws IOException {
+        JSONArray list = new JSONArray();
+        synchronized (jobs) {
+            for (ServerJob job : jobs.values()) {
+                if (job.tenant.equals(tenant)) {
+                    list.put(job.toJson(false));
+                }
+            }
+        }
+        sendJson(exchange, 200, new JSONObject().put("jobs", list));
+    }
+
+    // Server-sent events: every progress event as "id / event / data", then the stream ends with the job.
+    private void streamEvents(HttpExchange exchange, ServerJob job) throws IOException, InterruptedException {
+        int next = 0;
+        String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        if (lastEventId != null) {
+            try {
+                next = Integer.parseInt(lastEventId.trim()) + 1;
+            } catch (NumberFormatException e) {
+                next = 0;
+            }
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        while (true) {
+            List<JSONObject> events = job.awaitEvents(next, EVENT_KEEPALIVE_MILLIS);
+            if (events.isEmpty() && job.isFinished()) {
+                return;
+            }
+            StringBuilder chunk = new StringBuilder();
+            for (JSONObject event : events) {
+                chunk.append("id: ").append(event.getInt("seq")).append('\n')
+                        .append("event: ").append(event.getString("type")).append('\n')
+                        .append("data: ").append(event.toString()).append("\n\n");
+                next = event.getInt("seq") + 1;
+            }
+            if (events.isEmpty()) {
+                chunk.append(": keep-alive\n\n");
+            }
+            out.write(chunk.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+
+    private void sendAudio(HttpExchange exchange, ServerJob job, String slide) throws IOException {
+        Path file;
+        if (slide == null) {
+            file = DeckTrack.trackPath(job.audioDir(), "deck");
+        } else {
+            try {
+                file = AudioBatch.slideAudioPath(job.audioDir(), Integer.parseInt(slide) - 1);
+            } catch (NumberFormatException e) {
+                sendError(exchange, 400, "Slide must be a number");
+                return;
+            }
+        }
+        if (!Files.isRegularFile(file)) {
+            sendError(exchange, 404, "Audio is not available (yet)");
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "audio/mpeg");
+        exchange.sendResponseHeaders(200, Files.size(file));
+        try (OutputStream out = exchange.getResponseBody()) {
+            Files.copy(file, out);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = URLDecoder.decode(equals >= 0 ? pair.substring(0, equals) : pair, StandardCharsets.UTF_8);
+            String value = equals >= 0 ? URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8) : "";
+            query.put(key, value);
+        }
+        return query;
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, JSONObject json) throws IOException {
+        byte[] body = json.toString(2).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) {
+        try {
+            sendJson(exchange, status, new JSONObject().put("error", message));
+        } catch (IOException e) {
+            // Headers were already sent or the client went away
+            LOGGER.fine("Could not send error response: " + e.getMessage());
+        }
+    }
+
+    private static void deleteRecursively(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    LOGGER.warning("Could not delete " + path + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.warning("Could not delete " + dir + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.powerpoint.expander;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// One set of pooled HTTP clients for the whole application. ElevenLabs and Cloudinary share an OkHttp
+// client (connection pool, HTTP/2, per-host concurrency limit); the OpenAI library needs a java.net.http
+// client, so it gets a single shared HTTP/2 instance instead of building its own. Both clients throttle
+// and retry API calls through the provider's RateLimiter.
+public class HttpTransport {
+    private static final Logger LOGGER = Logger.getLogger(HttpTransport.class.getName());
+    private static final int TIMEOUT_SECONDS = 60;
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 8;
+    private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 16;
+    private static final int DEFAULT_KEEP_ALIVE_SECONDS = 300;
+    private static final long SLOT_POLL_MILLIS = 200;
+
+    private static final AtomicLong calls = new AtomicLong();
+    private static final AtomicLong connectionsAcquired = new AtomicLong();
+    private static final AtomicLong connectionsOpened = new AtomicLong();
+    private static OkHttpClient okHttpClient;
+    private static HttpClient javaHttpClient;
+
+    public static synchronized OkHttpClient okHttp() {
+        if (okHttpClient == null) {
+            int keepAliveSeconds = Settings.getInt("http.keepalive.seconds", DEFAULT_KEEP_ALIVE_SECONDS);
+            int maxRequestsPerHost = Math.max(1, Settings.getInt("http.max.requests.per.host", DEFAULT_MAX_REQUESTS_PER_HOST));
+            // The dispatcher limit only covers enqueue(); the interceptor also holds execute() calls to it
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+            okHttpClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(Settings.getInt("http.max.idle.connections", DEFAULT_MAX_IDLE_CONNECTIONS),
+                            keepAliveSeconds, TimeUnit.SECONDS))
+                    .dispatcher(dispatcher)
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .connectTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .writeTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .readTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .pingInterval(30, TimeUnit.SECONDS)
+                    .eventListener(new ConnectionStatsListener())
+                    .addInterceptor(new RateLimitInterceptor())
+                    .addInterceptor(new HostLimitInterceptor(maxRequestsPerHost))
+                    .build();
+            ConnectionPool pool = okHttpClient.connectionPool();
+            Metrics.gauge("http.connections.pooled", pool::connectionCount);
+            Metrics.gauge("http.connections.idle", pool::idleConnectionCount);
+            LOGGER.info("Created shared HTTP client: max " + maxRequestsPerHost + " requests per host, keep-alive "
+                    + keepAliveSeconds + "s");
+        }
+        return okHttpClient;
+    }
+
+    public static synchronized HttpClient javaHttpClient() {
+        if (javaHttpClient == null) {
+            // The JDK client reads its keep-alive timeout from a system property when it is first used
+            if (System.getProperty("jdk.httpclient.keepalive.timeout") == null) {
+                System.setProperty("jdk.httpclient.keepalive.timeout",
+                        String.valueOf(Settings.getInt("http.keepalive.seconds", DEFAULT_KEEP_ALIVE_SECONDS)));
+            }
+            javaHttpClient = new ThrottledHttpClient(HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .connectTimeout(Duration.ofSeconds(TIMEOUT_SECONDS))
+                    .build());
+        }
+        return javaHttpClient;
+    }
+
+    public static long getCalls() {
+        return calls.get();
+    }
+
+    public static long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    // Requests served on a connection that was already open (pooled or multiplexed).
+    public static long getConnectionsReused() {
+        return Math.max(0, connectionsAcquired.get() - connectionsOpened.get());
+    }
+
+    public static String getStats() {
+        ConnectionPool pool = okHttp().connectionPool();
+        return "calls=" + calls.get() + ", connections opened=" + connectionsOpened.get() + ", reused=" + getConnectionsReused()
+                + ", pooled=" + pool.connectionCount() + " (" + pool.idleConnectionCount() + " idle)";
+    }
+
+    // Names the rate limiter for an API host, or null for hosts that are not throttled.
+    static String providerFor(String host) {
+        if (host == null) {
+            return null;
+        }
+        if (host.endsWith("api.openai.com")) {
+            return "openai";
+        }
+        if (host.endsWith("elevenlabs.io")) {
+            return "elevenlabs";
+        }
+        if (host.endsWith("cloudinary.com")) {
+            return "cloudinary";
+        }
+        return null;
+    }
+
+    // Throttles OkHttp calls through the provider's RateLimiter and retries rate limits and server errors
+    // with backoff. The concurrency slot is held until the response body is closed, so a long audio stream
+    // counts as in flight for as long as it is downloading. Cancelling the current job cancels the call,
+    // including a body that is still downloading.
+    private static class RateLimitInterceptor implements Interceptor {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            String provider = providerFor(request.url().host());
+            if (provider == null) {
+                return chain.proceed(request);
+            }
+            // Removed once the call is over, when its body is closed if it has one; a registered hook keeps the
+            // call and its request body reachable for the rest of the job
+            Runnable removeCancelHook = Job.onCancel(chain.call()::cancel);
+            boolean bodyOwnsHook = false;
+            try {
+                RateLimiter limiter = RateLimiter.forProvider(provider);
+                // ElevenLabs budgets characters; the JSON body length is a close upper bound
+                long cost = request.body() != null ? Math.max(0, request.body().contentLength()) : 0;
+                int maxRetries = RateLimiter.getMaxRetries();
+                for (int attempt = 1; ; attempt++) {
+                    if (chain.call().isCanceled()) {
+                        throw new IOException("Canceled");
+                    }
+                    RateLimiter.Permit permit;
+                    try {
+                        permit = limiter.acquire(cost);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the " + provider + " rate limit");
+                    }
+
+                    Response response;
+                    try {
+                        response = chain.proceed(request);
+                    } catch (IOException | RuntimeException e) {
+                        permit.failed();
+                        throw e;
+                    }
+                    limiter.observeHeaders(response::header);
+                    int code = response.code();
+                    long retryAfter = RateLimiter.parseRetryAfter(response.header("Retry-After"));
+                    if (!RateLimiter.isRetryable(code) || attempt > maxRetries) {
+                        if (RateLimiter.isThrottling(code)) {
+                            permit.throttled(retryAfter);
+                            if (response.body() == null) {
+                                return response;
+                            }
+                            bodyOwnsHook = true;
+                            return response.newBuilder().body(new ReleasingBody(response.body(), removeCancelHook)).build();
+                        }
+                        if (response.body() == null) {
+                            permit.success();
+                            return response;
+                        }
+                        bodyOwnsHook = true;
+                        return response.newBuilder().body(new ReleasingBody(response.body(), () -> {
+                            permit.success();
+                            removeCancelHook.run();
+                        })).build();
+                    }
+
+                    if (RateLimiter.isThrottling(code)) {
+                        permit.throttled(retryAfter);
+                    } else {
+                        permit.success();
+                    }
+                    response.close();
+                    long delay = retryAfter > 0 ? retryAfter : RateLimiter.backoffMillis(attempt);
+                    Metrics.counter(provider + ".retries").increment();
+                    LOGGER.warning(provider + " returned " + code + ", retrying in " + delay + " ms (attempt " + (attempt + 1) + " of " + (maxRetries + 1) + ")");
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while backing off from " + provider);
+                    }
+                }
+            } finally {
+                if (!bodyOwnsHook) {
+                    removeCancelHook.run();
+                }
+            }
+        }
+    }
+
+    // Caps the calls in flight to each host, whether they were queued with enqueue() or run directly with
+    // execute(). Every attempt of a retried call takes its own slot, and the slot is held until the response
+    // body is closed. Waiting stops when the call is cancelled.
+    private static class HostLimitInterceptor implements Interceptor {
+        private final int maxRequestsPerHost;
+        private final Map<String, Semaphore> slotsByHost = new ConcurrentHashMap<>();
+
+        HostLimitInterceptor(int maxRequestsPerHost) {
+            this.maxRequestsPerHost = maxRequestsPerHost;
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            String host = chain.request().url().host();
+            Semaphore slots = slotsByHost.computeIfAbsent(host, key -> new Semaphore(maxRequestsPerHost, true));
+            try {
+                while (!slots.tryAcquire(SLOT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (chain.call().isCanceled()) {
+                        throw new IOException("Canceled");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a connection slot to " + host);
+            }
+
+            Response response;
+            try {
+                response = chain.proceed(chain.request());
+            } catch (IOException | RuntimeException e) {
+                slots.release();
+                throw e;
+            }
+            if (response.body() == null) {
+                slots.release();
+                return response;
+            }
+            return response.newBuilder().body(new ReleasingBody(response.body(), slots::release)).build();
+        }
+    }
+
+    // Runs an action once when the body is closed, whether it was read to the end or not.
+    private static class ReleasingBody extends ResponseBody {
+        private final ResponseBody delegate;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final Runnable release;
+        private BufferedSource source;
+
+        ReleasingBody(ResponseBody delegate, Runnable release) {
+            this.delegate = delegate;
+            this.release = release;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public synchronized BufferedSource source() {
+            if (source == null) {
+                source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            if (released.compareAndSet(false, true)) {
+                                release.run();
+                            }
+                        }
+                    }
+                });
+            }
+            return source;
+        }
+    }
+
+    private static class ConnectionStatsListener extends EventListener {
+        @Override
+        public void callStart(Call call) {
+            calls.incrementAndGet();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectionsOpened.incrementAndGet();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            connectionsAcquired.incrementAndGet();
+        }
+
+        @Override
+        public void requestBodyEnd(Call call, long byteCount) {
+            Metrics.counter(metricPrefix(call) + ".bytes.sent").add(byteCount);
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            Metrics.counter(metricPrefix(call) + ".bytes.received").add(byteCount);
+        }
+
+        private static String metricPrefix(Call call) {
+            String provider = providerFor(call.request().url().host());
+            return provider != null ? provider : "http";
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.powerpoint.expander;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.logging.Logger;
+
+// Persistent index from picture content hash to its uploaded URL and vision description, so an image
+// that appears again (in the same deck or a later one) is neither uploaded nor described twice. URLs are
+// kept per preprocessing setting, since changing the size or quality changes what was uploaded.
+public class ImageIndex {
+    private static final Logger LOGGER = Logger.getLogger(ImageIndex.class.getName());
+    private static final long MAX_INDEX_BYTES = 10L * 1024L * 1024L;
+    private static DiskCache cache;
+
+    public static boolean isEnabled() {
+        return Settings.getBoolean("cache.images.enabled", true);
+    }
+
+    public static String getUrl(String imageHash) {
+        return getField(imageHash, urlField());
+    }
+
+    public static void putUrl(String imageHash, String url) {
+        putField(imageHash, urlField(), url);
+    }
+
+    private static String urlField() {
+        return "url:" + ImagePreprocessor.getSettingsKey();
+    }
+
+    public static String getDescription(String imageHash) {
+        return getField(imageHash, "description");
+    }
+
+    public static void putDescription(String imageHash, String description) {
+        putField(imageHash, "description", description);
+    }
+
+    private static String getField(String imageHash, String field) {
+        if (imageHash == null || !isEnabled()) {
+            return null;
+        }
+        JSONObject entry = read(imageHash);
+        return entry == null ? null : entry.optString(field, null);
+    }
+
+    private static synchronized void putField(String imageHash, String field, String value) {
+        if (imageHash == null || value == null || !isEnabled()) {
+            return;
+        }
+        JSONObject entry = read(imageHash);
+        if (entry == null) {
+            entry = new JSONObject();
+        }
+        entry.put(field, value);
+        getCache().putString(imageHash, entry.toString());
+    }
+
+    private static JSONObject read(String imageHash) {
+        String json = getCache().getString(imageHash);
+        if (json == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(json);
+        } catch (JSONException e) {
+            LOGGER.warning("Ignoring corrupt image index entry " + imageHash + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static synchronized DiskCache getCache() {
+        if (cache == null) {
+            cache = new DiskCache(Settings.getAppDir().resolve("cache").resolve("images"), ".json", MAX_INDEX_BYTES);
+        }
+        return cache;
+    }
+}
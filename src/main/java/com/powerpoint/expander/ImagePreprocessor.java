@@ -0,0 +1,169 @@
+package com.powerpoint.expander;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Shrinks pictures before they are uploaded and sent to the vision model: scales them down to a maximum
+// dimension and re-encodes them as JPEG without metadata. Every picture ImageIO can read is re-encoded, even
+// when that does not make it smaller, so EXIF (location, camera, author) and ICC data never leave the machine;
+// only formats it cannot read (EMF, WMF, SVG) are passed through unchanged.
+public class ImagePreprocessor {
+    private static final Logger LOGGER = Logger.getLogger(ImagePreprocessor.class.getName());
+    private static final int DEFAULT_MAX_DIMENSION = 1024;
+    private static final int DEFAULT_JPEG_QUALITY = 80;
+    private static final AtomicLong bytesIn = new AtomicLong();
+    private static final AtomicLong bytesOut = new AtomicLong();
+
+    public static byte[] process(byte[] data) {
+        if (!Settings.getBoolean("image.preprocess.enabled", true)) {
+            return data;
+        }
+        byte[] result = data;
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+            if (image == null) {
+                LOGGER.info("Image format not supported for preprocessing, uploading original (" + data.length + " bytes)");
+            } else {
+                result = encodeJpeg(scaleToFit(image, getMaxDimension()), getJpegQuality() / 100f);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warning("Image preprocessing failed, uploading original: " + e.getMessage());
+        }
+
+        bytesIn.addAndGet(data.length);
+        bytesOut.addAndGet(result.length);
+        LOGGER.info("Preprocessed image: " + data.length + " -> " + result.length + " bytes (saved " + (data.length - result.length)
+                + " bytes, " + getBytesSaved() + " bytes saved in total)");
+        return result;
+    }
+
+    // The vision API only accepts JPEG, PNG, GIF and WebP. Other pictures ImageIO can read (TIFF, BMP) are
+    // re-encoded as JPEG; for those it cannot (EMF, WMF, SVG) this returns null.
+    public static byte[] toVisionFormat(byte[] data) {
+        if (!getMimeType(data).equals("application/octet-stream")) {
+            return data;
+        }
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+            if (image != null) {
+                return encodeJpeg(scaleToFit(image, getMaxDimension()), getJpegQuality() / 100f);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warning("Could not convert image for the vision model: " + e.getMessage());
+        }
+        return null;
+    }
+
+    // Identifies the settings process() currently applies, so stored results made with other settings are not reused.
+    public static String getSettingsKey() {
+        if (!Settings.getBoolean("image.preprocess.enabled", true)) {
+            return "original";
+        }
+        return "max" + getMaxDimension() + "-q" + getJpegQuality();
+    }
+
+    private static int getMaxDimension() {
+        return Math.max(1, Settings.getInt("image.max.dimension", DEFAULT_MAX_DIMENSION));
+    }
+
+    private static int getJpegQuality() {
+        return Math.min(100, Math.max(1, Settings.getInt("image.jpeg.quality", DEFAULT_JPEG_QUALITY)));
+    }
+
+    // Downscales in halving steps before the final resize, which keeps large reductions from aliasing.
+    private static BufferedImage scaleToFit(BufferedImage image, int maxDimension) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double scale = Math.min(1.0, (double) maxDimension / Math.max(width, height));
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+
+        // JPEG has no alpha channel, so transparent areas are flattened onto white
+        BufferedImage current = draw(image, width, height);
+        while (current.getWidth() / 2 >= targetWidth && current.getHeight() / 2 >= targetHeight) {
+            current = draw(current, current.getWidth() / 2, current.getHeight() / 2);
+        }
+        if (current.getWidth() != targetWidth || current.getHeight() != targetHeight) {
+            current = draw(current, targetWidth, targetHeight);
+        }
+        return current;
+    }
+
+    private static BufferedImage draw(BufferedImage source, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+
+    // Writes the pixels only, so EXIF, ICC and other metadata from the original are dropped.
+    private static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("No JPEG encoder available");
+        }
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOut = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(imageOut);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    // Detects the formats accepted by the vision API from their magic numbers.
+    public static String getMimeType(byte[] data) {
+        if (data.length >= 3 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8 && (data[2] & 0xFF) == 0xFF) {
+            return "image/jpeg";
+        }
+        if (data.length >= 8 && (data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G') {
+            return "image/png";
+        }
+        if (data.length >= 4 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F' && data[3] == '8') {
+            return "image/gif";
+        }
+        if (data.length >= 12 && data[0] == 'R' && data[1] == 'I' && data[2] == 'F' && data[3] == 'F'
+                && data[8] == 'W' && data[9] == 'E' && data[10] == 'B' && data[11] == 'P') {
+            return "image/webp";
+        }
+        return "application/octet-stream";
+    }
+
+    public static long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public static long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public static long getBytesSaved() {
+        return bytesIn.get() - bytesOut.get();
+    }
+}
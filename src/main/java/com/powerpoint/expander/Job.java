@@ -0,0 +1,409 @@
+package com.powerpoint.expander;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+// One expansion or narration run over a deck. Every stage a slide finishes (parsed, image described,
+// expanded, narrated) is appended to the deck's journal in the app directory, so a run that failed, was
+// cancelled or died with the window is resumed from there without paying again for finished work.
+//
+// A job is also the unit of cancellation. Work done for it runs with the job as the thread's current job
+// (pools hand it on through propagate), HTTP calls register a hook that aborts them, and retry loops stop
+// once the job is cancelled.
+public class Job {
+    private static final Logger LOGGER = Logger.getLogger(Job.class.getName());
+    private static final ThreadLocal<Job> current = new ThreadLocal<>();
+
+    public enum Stage { PARSED, DESCRIBED, EXPANDED, NARRATED }
+
+    private final Path path;
+    private final String deckPath;
+    private final String kind;
+    private final boolean resumed;
+    // Work finished by earlier runs that did not complete
+    private final Map<String, String> descriptionsByImage = new HashMap<>();
+    private final Map<String, String> expansionsByContent = new HashMap<>();
+    private final Map<Stage, Set<Integer>> finished = new EnumMap<>(Stage.class);
+    private final List<Runnable> cancelHooks = new CopyOnWriteArrayList<>();
+    private FileChannel channel;
+    private volatile boolean cancelled;
+    private String failure;
+
+    private Job(Path path, String deckPath, String kind, boolean resumed) {
+        this.path = path;
+        this.deckPath = deckPath;
+        this.kind = kind;
+        this.resumed = resumed;
+        for (Stage stage : Stage.values()) {
+            finished.put(stage, new HashSet<>());
+        }
+    }
+
+    private static Path journalPath(File deck) {
+        String deckPath = deck.getAbsoluteFile().toPath().normalize().toString();
+        return Settings.getAppDir().resolve("jobs").resolve(ContentHash.sha256(deckPath.getBytes(StandardCharsets.UTF_8)) + ".jsonl");
+    }
+
+    // Starts a run over the deck. If the previous run did not complete, its journal is kept and its
+    // finished work is reused; otherwise the journal starts over.
+    public static Job start(File deck, String kind) throws IOException {
+        Path path = journalPath(deck);
+        List<JSONObject> records = readJournal(path);
+        boolean resume = !records.isEmpty() && !isCompleted(records);
+        Job job = new Job(path, deck.getAbsoluteFile().toPath().normalize().toString(), kind, resume);
+        if (resume) {
+            for (JSONObject record : records) {
+                job.load(record);
+            }
+            LOGGER.info("Resuming unfinished run of " + job.deckPath + ": " + job.describeProgress());
+        }
+
+        Files.createDirectories(path.getParent());
+        job.channel = resume
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        job.append(new JSONObject().put("event", "start").put("kind", kind).put("deck", job.deckPath)
+                .put("resumed", resume).put("time", System.currentTimeMillis()));
+        return job;
+    }
+
+    // Deletes the journal of a deck that will not be seen again.
+    public static void forget(File deck) {
+        Path path = journalPath(deck);
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.warning("Could not delete job journal " + path + ": " + e.getMessage());
+        }
+    }
+
+    // A summary of the unfinished run of this deck, or null if the last run completed or there was none.
+    public static String describeUnfinished(File deck) {
+        List<JSONObject> records = readJournal(journalPath(deck));
+        if (records.isEmpty() || isCompleted(records)) {
+            return null;
+        }
+        Job job = new Job(journalPath(deck), deck.getPath(), null, true);
+        for (JSONObject record : records) {
+            job.load(record);
+        }
+        return job.describeProgress();
+    }
+
+    private static List<JSONObject> readJournal(Path path) {
+        List<JSONObject> records = new ArrayList<>();
+        if (!Files.exists(path)) {
+            return records;
+        }
+        try {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                try {
+                    records.add(new JSONObject(line));
+                } catch (JSONException e) {
+                    // A line cut short when the process died
+                    LOGGER.fine("Skipping unreadable journal line in " + path);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Could not read job journal " + path + ": " + e.getMessage());
+        }
+        return records;
+    }
+
+    private static boolean isCompleted(List<JSONObject> records) {
+        for (int i = records.size() - 1; i >= 0; i--) {
+            JSONObject record = records.get(i);
+            if ("end".equals(record.optString("event"))) {
+                return "completed".equals(record.optString("status"));
+            }
+            if ("start".equals(record.optString("event"))) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void load(JSONObject record) {
+        if (!"stage".equals(record.optString("event"))) {
+            return;
+        }
+        Stage stage;
+        try {
+            stage = Stage.valueOf(record.getString("stage"));
+        } catch (IllegalArgumentException | JSONException e) {
+            return;
+        }
+        finished.get(stage).add(record.optInt("slide"));
+        if (stage == Stage.DESCRIBED && record.has("image") && record.has("description")) {
+            descriptionsByImage.put(record.getString("image"), record.getString("description"));
+        } else if (stage == Stage.EXPANDED && record.has("content") && record.has("text")) {
+            expansionsByContent.put(record.getString("content") + "/" + record.optString("settings"), record.getString("text"));
+        }
+    }
+
+    private String describeProgress() {
+        return finished.get(Stage.PARSED).size() + " parsed, " + finished.get(Stage.DESCRIBED).size() + " images described, "
+                + finished.get(Stage.EXPANDED).size() + " expanded, " + finished.get(Stage.NARRATED).size() + " narrated";
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public synchronized int getFinishedCount(Stage stage) {
+        return finished.get(stage).size();
+    }
+
+    private synchronized void append(JSONObject record) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            ByteBuffer line = ByteBuffer.wrap((record.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Could not write job journal " + path + ": " + e.getMessage());
+        }
+    }
+
+    private void recordStage(Stage stage, int index, JSONObject details) {
+        synchronized (this) {
+            finished.get(stage).add(index);
+        }
+        append(details.put("event", "stage").put("stage", stage.name()).put("slide", index));
+    }
+
+    public void recordParsed(int index, SlideContent slide) {
+        recordStage(Stage.PARSED, index, new JSONObject().put("slideId", slide.getSlideId()).put("content", DeckManifest.contentHash(slide)));
+    }
+
+    public void recordDescribed(int index, SlideContent slide) {
+        String image = imageKey(slide);
+        if (image == null || slide.getImageDescription() == null) {
+            return;
+        }
+        synchronized (this) {
+            descriptionsByImage.put(image, slide.getImageDescription());
+        }
+        recordStage(Stage.DESCRIBED, index, new JSONObject().put("image", image).put("description", slide.getImageDescription()));
+    }
+
+    // Failed slides are not recorded, so they are requested again on resume.
+    public void recordExpanded(int index, SlideContent slide, String settingsHash, String expandedContent) {
+        if (expandedContent == null || expandedContent.startsWith(OpenAIExpander.FAILED_SLIDE_PREFIX)) {
+            return;
+        }
+        String content = DeckManifest.contentHash(slide);
+        synchronized (this) {
+            expansionsByContent.put(content + "/" + settingsHash, expandedContent);
+        }
+        recordStage(Stage.EXPANDED, index, new JSONObject().put("content", content).put("settings", settingsHash).put("text", expandedContent));
+    }
+
+    public void recordNarrated(int index, Path audioFile) {
+        recordStage(Stage.NARRATED, index, new JSONObject().put("file", audioFile.toString()));
+    }
+
+    // Puts image descriptions from the journal back on the slide so describing it is skipped.
+    public synchronized boolean restoreDescription(SlideContent slide) {
+        String image = imageKey(slide);
+        String description = image != null ? descriptionsByImage.get(image) : null;
+        if (description == null || slide.getImageDescription() != null) {
+            return false;
+        }
+        slide.setImageDescription(description);
+        return true;
+    }
+
+    // Seeds the manifest with expansions from the journal that it does not have yet (the manifest itself is
+    // only saved at the end of a run), so expandDeck does not request them again. Returns how many were restored.
+    public synchronized int restoreExpansions(DeckManifest manifest, List<SlideContent> slides, String settingsHash) {
+        int restored = 0;
+        for (SlideContent slide : slides) {
+            String text = expansionsByContent.get(DeckManifest.contentHash(slide) + "/" + settingsHash);
+            if (text != null && manifest.reusable(slide, settingsHash) == null) {
+                manifest.recordExpansion(slide, settingsHash, text);
+                restored++;
+            }
+        }
+        if (restored > 0) {
+            LOGGER.info("Restored " + restored + " expanded slides from the journal of " + deckPath);
+        }
+        return restored;
+    }
+
+    private static String imageKey(SlideContent slide) {
+        return slide.getImageHash() != null ? slide.getImageHash() : slide.getImageUrl();
+    }
+
+    // Runs work with this job as the current one, and closes the journal when it ends. The run is recorded as
+    // completed only if it returns normally, was not cancelled and markFailed was not called.
+    public <T> T run(Callable<T> work) throws Exception {
+        Job previous = current.get();
+        current.set(this);
+        String status = "failed";
+        try {
+            T result = work.call();
+            status = cancelled ? "cancelled" : failure != null ? "failed" : "completed";
+            return result;
+        } catch (CancellationException e) {
+            status = "cancelled";
+            throw e;
+        } catch (Exception e) {
+            status = cancelled ? "cancelled" : "failed";
+            if (failure == null) {
+                failure = String.valueOf(e.getMessage());
+            }
+            throw e;
+        } finally {
+            current.set(previous);
+            end(status);
+        }
+    }
+
+    // Leaves the journal open for a resume even though the work returned normally, e.g. when some slides failed.
+    public synchronized void markFailed(String reason) {
+        failure = reason;
+    }
+
+    private synchronized void end(String status) {
+        if (channel == null) {
+            return;
+        }
+        JSONObject record = new JSONObject().put("event", "end").put("status", status).put("time", System.currentTimeMillis());
+        if (failure != null && !"completed".equals(status)) {
+            record.put("error", failure);
+        }
+        append(record);
+        LOGGER.info("Job " + kind + " of " + deckPath + " ended: " + status + " (" + describeProgress() + ")");
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warning("Could not close job journal " + path + ": " + e.getMessage());
+        }
+        channel = null;
+    }
+
+    // Stops the job: new work is refused and calls in flight are aborted.
+    public void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        LOGGER.info("Cancelling job " + kind + " of " + deckPath);
+        for (Runnable hook : cancelHooks) {
+            try {
+                hook.run();
+            } catch (RuntimeException e) {
+                LOGGER.warning("Cancel hook failed: " + e.getMessage());
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public static Job current() {
+        return current.get();
+    }
+
+    // Throws CancellationException if the job this thread is working for was cancelled.
+    public static void checkCancelled() {
+        Job job = current.get();
+        if (job != null && job.cancelled) {
+            throw new CancellationException("Job was cancelled");
+        }
+    }
+
+    public static boolean isCurrentCancelled() {
+        Job job = current.get();
+        return job != null && job.cancelled;
+    }
+
+    // Registers a hook that aborts an in-flight call if the current job is cancelled. The returned handle
+    // removes it again once the call is over. Outside of a job this does nothing.
+    public static Runnable onCancel(Runnable hook) {
+        Job job = current.get();
+        if (job == null) {
+            return () -> {
+            };
+        }
+        job.cancelHooks.add(hook);
+        if (job.cancelled) {
+            hook.run();
+        }
+        return () -> job.cancelHooks.remove(hook);
+    }
+
+    // Hands the current job on to a task that runs on another thread.
+    public static Runnable propagate(Runnable task) {
+        Job job = current.get();
+        if (job == null) {
+            return task;
+        }
+        return () -> {
+            Job previous = current.get();
+            current.set(job);
+            try {
+                task.run();
+            } finally {
+                current.set(previous);
+            }
+        };
+    }
+
+    public static <T> Supplier<T> propagateSupplier(Supplier<T> task) {
+        Job job = current.get();
+        if (job == null) {
+            return task;
+        }
+        return () -> {
+            Job previous = current.get();
+            current.set(job);
+            try {
+                return task.get();
+            } finally {
+                current.set(previous);
+            }
+        };
+    }
+
+    public static <T> Callable<T> propagate(Callable<T> task) {
+        Job job = current.get();
+        if (job == null) {
+            return task;
+        }
+        return () -> {
+            Job previous = current.get();
+            current.set(job);
+            try {
+                return task.call();
+            } finally {
+                current.set(previous);
+            }
+        };
+    }
+}
@@ -0,0 +1,203 @@
+package com.powerpoint.expander;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.logging.Logger;
+
+// Minimal MPEG audio helpers: locating the frame data between ID3 tags, reading frame headers and
+// joining files frame-for-frame without decoding.
+public class Mp3 {
+    private static final Logger LOGGER = Logger.getLogger(Mp3.class.getName());
+    private static final int ID3V2_HEADER_SIZE = 10;
+    private static final int ID3V1_TAG_SIZE = 128;
+
+    private static final int[][] BITRATES_KBPS = {
+            // MPEG-1 layer I, II, III
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            // MPEG-2/2.5 layer I, II and III
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+    };
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+
+    static class FrameHeader {
+        final boolean mpeg1;
+        final int layer;
+        final int sampleRate;
+        final int frameLength;
+        final int samplesPerFrame;
+        final boolean mono;
+
+        private FrameHeader(boolean mpeg1, int layer, int sampleRate, int frameLength, int samplesPerFrame, boolean mono) {
+            this.mpeg1 = mpeg1;
+            this.layer = layer;
+            this.sampleRate = sampleRate;
+            this.frameLength = frameLength;
+            this.samplesPerFrame = samplesPerFrame;
+            this.mono = mono;
+        }
+    }
+
+    // Parses a 4-byte frame header, or returns null if the bytes are not a valid header.
+    static FrameHeader parseHeader(int header) {
+        if ((header & 0xFFE00000) != 0xFFE00000) {
+            return null;
+        }
+        int versionBits = (header >>> 19) & 0x3;
+        int layerBits = (header >>> 17) & 0x3;
+        int bitrateIndex = (header >>> 12) & 0xF;
+        int sampleRateIndex = (header >>> 10) & 0x3;
+        int padding = (header >>> 9) & 0x1;
+        int channelMode = (header >>> 6) & 0x3;
+        if (versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+            return null;
+        }
+
+        boolean mpeg1 = versionBits == 3;
+        int layer = 4 - layerBits;
+        int sampleRate = SAMPLE_RATES[sampleRateIndex];
+        if (versionBits == 2) {
+            sampleRate /= 2;
+        } else if (versionBits == 0) {
+            sampleRate /= 4;
+        }
+        int bitrate = (mpeg1 ? BITRATES_KBPS[layer - 1] : BITRATES_KBPS[layer == 1 ? 3 : 4])[bitrateIndex] * 1000;
+
+        int samplesPerFrame;
+        int frameLength;
+        if (layer == 1) {
+            samplesPerFrame = 384;
+            frameLength = (12 * bitrate / sampleRate + padding) * 4;
+        } else {
+            samplesPerFrame = layer == 3 && !mpeg1 ? 576 : 1152;
+            frameLength = samplesPerFrame / 8 * bitrate / sampleRate + padding;
+        }
+        return new FrameHeader(mpeg1, layer, sampleRate, frameLength, samplesPerFrame, channelMode == 3);
+    }
+
+    // Returns {start, end} of the MPEG frame data, skipping a leading ID3v2 tag, a trailing ID3v1 tag and
+    // a Xing/Info/VBRI header frame, which would describe only this part once files are joined.
+    static long[] audioRange(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long start = 0;
+        ByteBuffer header = ByteBuffer.allocate(ID3V2_HEADER_SIZE);
+        if (readFully(channel, header, 0) && header.get(0) == 'I' && header.get(1) == 'D' && header.get(2) == '3') {
+            int flags = header.get(5);
+            start = ID3V2_HEADER_SIZE + synchsafe(header, 6);
+            if ((flags & 0x10) != 0) {
+                start += ID3V2_HEADER_SIZE;
+            }
+        }
+
+        long end = size;
+        if (size - start >= ID3V1_TAG_SIZE) {
+            ByteBuffer tag = ByteBuffer.allocate(3);
+            if (readFully(channel, tag, size - ID3V1_TAG_SIZE) && tag.get(0) == 'T' && tag.get(1) == 'A' && tag.get(2) == 'G') {
+                end = size - ID3V1_TAG_SIZE;
+            }
+        }
+
+        start = findFrame(channel, start, end);
+        if (start < end) {
+            FrameHeader first = readHeader(channel, start);
+            if (first != null && isInfoFrame(channel, start, first)) {
+                start += first.frameLength;
+            }
+        }
+        return new long[]{start, Math.max(start, end)};
+    }
+
+    // Skips any padding or junk before the first frame sync.
+    private static long findFrame(FileChannel channel, long position, long end) throws IOException {
+        while (position + 4 <= end) {
+            FrameHeader header = readHeader(channel, position);
+            if (header != null) {
+                return position;
+            }
+            position++;
+        }
+        return end;
+    }
+
+    static FrameHeader readHeader(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        if (!readFully(channel, buffer, position)) {
+            return null;
+        }
+        return parseHeader(buffer.getInt(0));
+    }
+
+    private static boolean isInfoFrame(FileChannel channel, long position, FrameHeader header) throws IOException {
+        int sideInfo = header.mpeg1 ? (header.mono ? 17 : 32) : (header.mono ? 9 : 17);
+        ByteBuffer tag = ByteBuffer.allocate(4);
+        if (readFully(channel, tag, position + 4 + sideInfo)) {
+            String id = new String(tag.array(), StandardCharsets.ISO_8859_1);
+            if (id.equals("Xing") || id.equals("Info")) {
+                return true;
+            }
+        }
+        tag.clear();
+        return readFully(channel, tag, position + 4 + 32)
+                && new String(tag.array(), StandardCharsets.ISO_8859_1).equals("VBRI");
+    }
+
+    // Joins the frame data of each part into target using zero-copy channel transfers. Tags and per-file
+    // VBR headers are dropped so players see one continuous stream.
+    public static void concat(List<Path> parts, Path target) throws IOException {
+        long total = 0;
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Path part : parts) {
+                try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+                    total += copyFrames(in, audioRange(in), out);
+                }
+            }
+        }
+        LOGGER.info("Joined " + parts.size() + " MP3 parts into " + target + " (" + total + " bytes)");
+    }
+
+    // Copies the given byte range to the current position of out; returns the number of bytes copied.
+    static long copyFrames(FileChannel in, long[] range, FileChannel out) throws IOException {
+        long position = range[0];
+        while (position < range[1]) {
+            position += in.transferTo(position, range[1] - position, out);
+        }
+        return range[1] - range[0];
+    }
+
+    // Sums the frame durations in the range by walking the frame headers.
+    static long durationMillis(FileChannel channel, long[] range) throws IOException {
+        double seconds = 0;
+        long position = range[0];
+        while (position + 4 <= range[1]) {
+            FrameHeader header = readHeader(channel, position);
+            if (header == null || header.frameLength <= 0) {
+                break;
+            }
+            seconds += (double) header.samplesPerFrame / header.sampleRate;
+            position += header.frameLength;
+        }
+        return Math.round(seconds * 1000);
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int synchsafe(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0x7F) << 21 | (buffer.get(offset + 1) & 0x7F) << 14
+                | (buffer.get(offset + 2) & 0x7F) << 7 | (buffer.get(offset + 3) & 0x7F);
+    }
+}
@@ -0,0 +1,344 @@
+package com.powerpoint.expander;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+// Runs parse -> describe images -> expand -> narrate as concurrent stages joined by bounded queues, so a
+// slide can be narrated while later slides are still being parsed or expanded. A full queue blocks the
+// stage feeding it, which keeps a fast stage from running far ahead of a slow one. Every finished stage
+// is recorded in the job's journal, and work an unfinished earlier run already did is taken from it.
+public class NarrationPipeline {
+    private static final Logger LOGGER = Logger.getLogger(NarrationPipeline.class.getName());
+    private static final int DEFAULT_QUEUE_CAPACITY = 8;
+    private static final int DEFAULT_IMAGE_PARALLELISM = 4;
+    private static final int DEFAULT_EXPANSION_PARALLELISM = 4;
+    private static final int DEFAULT_TTS_PARALLELISM = 3;
+    private static final int DEFAULT_CHUNK_TOKENS = 3000;
+    private static final int DEFAULT_CHUNK_SLIDES = 5;
+
+    public interface Listener {
+        default void onSlideCount(int slideCount) {
+        }
+
+        default void onExpanded(int index, String expandedContent) {
+        }
+
+        default void onNarrated(int index, AudioBatch.Status status, Exception error) {
+        }
+    }
+
+    public static class Result {
+        public final List<String> expandedContents;
+        public final List<String> slideIds;
+        public final int narrated;
+        public final int skipped;
+        public final int failed;
+
+        Result(List<String> expandedContents, List<String> slideIds, int narrated, int skipped, int failed) {
+            this.expandedContents = expandedContents;
+            this.slideIds = slideIds;
+            this.narrated = narrated;
+            this.skipped = skipped;
+            this.failed = failed;
+        }
+    }
+
+    private static class Item {
+        final int index;
+        final SlideContent slide;
+        final String expandedContent;
+
+        Item(int index, SlideContent slide, String expandedContent) {
+            this.index = index;
+            this.slide = slide;
+            this.expandedContent = expandedContent;
+        }
+    }
+
+    private static final Item END = new Item(-1, null, null);
+
+    private final File file;
+    private final Path audioDir;
+    private final int maxTokens;
+    private final String model;
+    private final Listener listener;
+    private final int describeWorkers;
+    private final int ttsWorkers;
+    private final BlockingQueue<Item> parsed;
+    private final BlockingQueue<Item> described;
+    private final BlockingQueue<Item> expanded;
+    private final Map<Integer, String> expandedContents = new TreeMap<>();
+    private final AtomicInteger narrated = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final DeckManifest manifest;
+    private final List<SlideContent> allSlides = new ArrayList<>();
+    private final Job job;
+
+    // run() must be called inside job.run so cancelling the job reaches every stage.
+    public NarrationPipeline(Job job, File file, Path audioDir, int maxTokens, String model, Listener listener) {
+        this.job = job;
+        this.file = file;
+        this.audioDir = audioDir;
+        this.maxTokens = maxTokens;
+        this.model = model;
+        this.listener = listener;
+        this.manifest = DeckManifest.load(file);
+        int capacity = Math.max(1, Settings.getInt("pipeline.queue.capacity", DEFAULT_QUEUE_CAPACITY));
+        this.parsed = new ArrayBlockingQueue<>(capacity);
+        this.described = new ArrayBlockingQueue<>(capacity);
+        this.expanded = new ArrayBlockingQueue<>(capacity);
+        this.describeWorkers = Math.max(1, Settings.getInt("image.describe.parallelism", DEFAULT_IMAGE_PARALLELISM));
+        this.ttsWorkers = Math.max(1, Settings.getInt("tts.parallelism", DEFAULT_TTS_PARALLELISM));
+    }
+
+    public Result run() throws Exception {
+        long started = System.nanoTime();
+        ExecutorService stages = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "narration-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Future<?> parser = stages.submit(Job.propagate(() -> {
+                parse();
+                return null;
+            }));
+            AtomicInteger describersLeft = new AtomicInteger(describeWorkers);
+            for (int i = 0; i < describeWorkers; i++) {
+                stages.submit(Job.propagate(() -> {
+                    describe(describersLeft);
+                    return null;
+                }));
+            }
+            Future<?> expander = stages.submit(Job.propagate(() -> {
+                expand();
+                return null;
+            }));
+            List<Future<?>> narrators = new ArrayList<>();
+            for (int i = 0; i < ttsWorkers; i++) {
+                narrators.add(stages.submit(Job.propagate(() -> {
+                    narrate();
+                    return null;
+                })));
+            }
+
+            parser.get();
+            expander.get();
+            for (Future<?> narrator : narrators) {
+                narrator.get();
+            }
+        } finally {
+            stages.shutdownNow();
+        }
+        Job.checkCancelled();
+
+        LOGGER.info("Pipeline finished in " + (System.nanoTime() - started) / 1_000_000 + " ms: " + narrated + " narrated, "
+                + skipped + " skipped, " + failed + " failed");
+        List<String> slideIds = new ArrayList<>();
+        for (SlideContent slide : allSlides) {
+            slideIds.add(DeckManifest.idOf(slide));
+        }
+        synchronized (expandedContents) {
+            return new Result(new ArrayList<>(expandedContents.values()), slideIds, narrated.get(), skipped.get(), failed.get());
+        }
+    }
+
+    private void parse() throws Exception {
+        try {
+            PowerPointParser.parseSlides(file, new PowerPointParser.SlideListener() {
+                @Override
+                public void onStart(int slideCount) {
+                    listener.onSlideCount(slideCount);
+                }
+
+                @Override
+                public void onSlide(int index, SlideContent slide) {
+                    Job.checkCancelled();
+                    job.recordParsed(index, slide);
+                    put(parsed, new Item(index, slide, null));
+                }
+            });
+        } finally {
+            // Even if parsing fails, let the downstream stages drain and stop
+            for (int i = 0; i < describeWorkers; i++) {
+                put(parsed, END);
+            }
+        }
+    }
+
+    private void describe(AtomicInteger describersLeft) throws InterruptedException {
+        try {
+            for (Item item = parsed.take(); item != END; item = parsed.take()) {
+                if (item.slide.getImageUrl() != null && !job.restoreDescription(item.slide) && !job.isCancelled()) {
+                    OpenAIExpander.describeImages(List.of(item.slide));
+                    job.recordDescribed(item.index, item.slide);
+                }
+                described.put(item);
+            }
+        } finally {
+            if (describersLeft.decrementAndGet() == 0) {
+                described.put(END);
+            }
+        }
+    }
+
+    // Restores slide order, groups consecutive slides into windows and expands each window as soon as
+    // it is full, with a bounded number of windows in flight. Every window is numbered and outlined as
+    // part of the whole deck, taken from a text-only pass that needs no network and finishes long before
+    // the first window is full.
+    private void expand() throws Exception {
+        int expansionParallelism = Math.max(1, Settings.getInt("expansion.parallelism", DEFAULT_EXPANSION_PARALLELISM));
+        int tokenBudget = Math.max(1, Settings.getInt("expansion.chunk.tokens", DEFAULT_CHUNK_TOKENS));
+        int maxSlides = Math.max(1, Settings.getInt("expansion.chunk.slides", DEFAULT_CHUNK_SLIDES));
+        Semaphore inFlight = new Semaphore(expansionParallelism);
+        ExecutorService windows = Executors.newFixedThreadPool(expansionParallelism, r -> {
+            Thread thread = new Thread(r, "pipeline-expand");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        try {
+            OpenAIExpander.DeckContext deck = OpenAIExpander.DeckContext.of(PowerPointParser.parseSlideText(file));
+            TreeMap<Integer, Item> outOfOrder = new TreeMap<>();
+            List<Item> window = new ArrayList<>();
+            int windowTokens = 0;
+            int next = 0;
+            for (Item item = described.take(); item != END; item = described.take()) {
+                outOfOrder.put(item.index, item);
+                while (outOfOrder.containsKey(next)) {
+                    Item ready = outOfOrder.remove(next++);
+                    allSlides.add(ready.slide);
+                    window.add(ready);
+                    windowTokens += countTokens(ready.slide);
+                    if (window.size() >= maxSlides || windowTokens >= tokenBudget) {
+                        pending.add(submitWindow(window, deck, windows, inFlight));
+                        window = new ArrayList<>();
+                        windowTokens = 0;
+                    }
+                }
+            }
+            for (Item item : outOfOrder.values()) {
+                allSlides.add(item.slide);
+                window.add(item);
+            }
+            if (!window.isEmpty()) {
+                pending.add(submitWindow(window, deck, windows, inFlight));
+            }
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+            manifest.retain(allSlides);
+            manifest.save();
+        } finally {
+            windows.shutdown();
+            for (int i = 0; i < ttsWorkers; i++) {
+                expanded.put(END);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> submitWindow(List<Item> window, OpenAIExpander.DeckContext deck, ExecutorService windows,
+                                                 Semaphore inFlight) throws InterruptedException {
+        inFlight.acquire();
+        return CompletableFuture.runAsync(Job.propagate(() -> {
+            try {
+                List<SlideContent> slides = new ArrayList<>();
+                List<Integer> indexes = new ArrayList<>();
+                for (Item item : window) {
+                    slides.add(item.slide);
+                    indexes.add(item.index);
+                }
+                if (job.isCancelled()) {
+                    return;
+                }
+                List<String> contents = expandWindow(slides, deck.subset(indexes));
+                for (int i = 0; i < window.size(); i++) {
+                    Item item = window.get(i);
+                    synchronized (expandedContents) {
+                        expandedContents.put(item.index, contents.get(i));
+                    }
+                    job.recordExpanded(item.index, item.slide, DeckManifest.settingsHash(model, maxTokens), contents.get(i));
+                    listener.onExpanded(item.index, contents.get(i));
+                    put(expanded, new Item(item.index, item.slide, contents.get(i)));
+                }
+            } finally {
+                inFlight.release();
+            }
+        }), windows);
+    }
+
+    private int countTokens(SlideContent slide) {
+        String text = slide.getText() != null ? slide.getText() : "";
+        String table = slide.getTable() != null ? slide.getTable() : "";
+        return TokenCounter.count(model, text + "\n" + table);
+    }
+
+    private List<String> expandWindow(List<SlideContent> slides, OpenAIExpander.DeckContext deck) {
+        String[] contents = new String[slides.size()];
+        JSONObject response;
+        job.restoreExpansions(manifest, slides, DeckManifest.settingsHash(model, maxTokens));
+        try {
+            response = new JSONObject(OpenAIExpander.expandDeck(manifest, slides, deck, maxTokens, model, true, null, null));
+        } catch (RuntimeException e) {
+            response = new JSONObject().put("error", String.valueOf(e.getMessage()));
+        }
+        if (response.has("error")) {
+            Arrays.fill(contents, OpenAIExpander.FAILED_SLIDE_PREFIX + response.getString("error") + "]");
+            return Arrays.asList(contents);
+        }
+        JSONArray slidesArray = response.getJSONArray("slides");
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = i < slidesArray.length() ? slidesArray.getJSONObject(i).optString("expandedContent", "") : "";
+        }
+        return Arrays.asList(contents);
+    }
+
+    private void narrate() throws InterruptedException {
+        for (Item item = expanded.take(); item != END; item = expanded.take()) {
+            if (job.isCancelled()) {
+                continue;
+            }
+            if (item.expandedContent.startsWith(OpenAIExpander.FAILED_SLIDE_PREFIX)) {
+                failed.incrementAndGet();
+                listener.onNarrated(item.index, AudioBatch.Status.FAILED, null);
+                continue;
+            }
+            try {
+                Path audioFile = AudioBatch.slideAudioPath(audioDir, item.index);
+                AudioBatch.Status status = AudioBatch.narrateSlide(item.expandedContent, audioFile);
+                job.recordNarrated(item.index, audioFile);
+                (status == AudioBatch.Status.GENERATED ? narrated : skipped).incrementAndGet();
+                listener.onNarrated(item.index, status, null);
+            } catch (Exception e) {
+                LOGGER.severe("Error generating audio for slide " + (item.index + 1) + ": " + e.getMessage());
+                failed.incrementAndGet();
+                listener.onNarrated(item.index, AudioBatch.Status.FAILED, e);
+            }
+        }
+    }
+
+    private static void put(BlockingQueue<Item> queue, Item item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Pipeline was interrupted", e);
+        }
+    }
+}
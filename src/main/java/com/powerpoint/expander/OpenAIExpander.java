@@ -2,6 +2,8 @@ package com.powerpoint.expander;
 
 import io.github.sashirestela.openai.SimpleOpenAI;
 import io.github.sashirestela.openai.common.ResponseFormat;
+import io.github.sashirestela.openai.common.StreamOptions;
+import io.github.sashirestela.openai.common.Usage;
 import io.github.sashirestela.openai.common.ResponseFormat.JsonSchema;
 import io.github.sashirestela.openai.domain.chat.*;
 import io.github.sashirestela.openai.domain.chat.ChatMessage.SystemMessage;
@@ -12,9 +14,21 @@ import io.github.sashirestela.openai.common.content.ContentPart.ContentPartImage
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONArray;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 public class OpenAIExpander {
     private static final Logger LOGGER = Logger.getLogger(OpenAIExpander.class.getName());
@@ -25,53 +39,290 @@ public class OpenAIExpander {
         }
         return key;
     }
-    private static final SimpleOpenAI openAI = SimpleOpenAI.builder().apiKey(getApiKey()).build();
+    private static SimpleOpenAI openAI;
+    private static final int DEFAULT_IMAGE_PARALLELISM = 4;
+    private static final int DEFAULT_IMAGE_TIMEOUT_SECONDS = 60;
+    private static final int DEFAULT_EXPANSION_PARALLELISM = 4;
+    private static final int DEFAULT_CHUNK_TOKENS = 3000;
+    private static final int DEFAULT_CHUNK_SLIDES = 5;
+    private static final int DEFAULT_CHUNK_RETRIES = 2;
+    private static final int MAX_OUTLINE_CHARS = 2000;
+    private static final int DEFAULT_EXPANSION_CACHE_MB = 50;
+    static final String FAILED_SLIDE_PREFIX = "[Expansion failed for this slide: ";
+    private static final int IMAGE_DESCRIPTION_TOKENS = 150;
+    private static ThreadPoolExecutor imageExecutor;
+    private static ThreadPoolExecutor chunkExecutor;
+    private static DiskCache expansionCache;
+    private static final Map<String, CompletableFuture<String>> prefetchedDescriptions = new ConcurrentHashMap<>();
+    private static final Metrics.Counter promptTokens = Metrics.counter("openai.tokens.prompt");
+    private static final Metrics.Counter completionTokens = Metrics.counter("openai.tokens.completion");
+    private static final Metrics.Timer EXPAND_TIMER = Metrics.timer("openai.expandSlideContents");
+    private static final Metrics.Timer CHAT_TIMER = Metrics.timer("openai.chatCompletion");
+    private static final Metrics.Timer DESCRIBE_TIMER = Metrics.timer("openai.describeImage");
+    private static final String IMAGE_MODEL = "gpt-4o-mini";
+
+    // Created on first use, so token estimates and the rest of the app work before an API key is configured.
+    private static synchronized SimpleOpenAI openAI() {
+        if (openAI == null) {
+            openAI = SimpleOpenAI.builder()
+                    .apiKey(getApiKey())
+                    .httpClient(HttpTransport.javaHttpClient())
+                    .build();
+        }
+        return openAI;
+    }
 
     public static String expandSlideContents(List<SlideContent> slideContents, int maxTokens, String model) {
-        LOGGER.info("Expanding slide contents. Number of slides: " + slideContents.size() + ", Max tokens: " + maxTokens + ", Model: " + model);
-        
-        List<ChatMessage> messages = new ArrayList<>();
-        messages.add(SystemMessage.of(Settings.get("system.prompt")));
+        return expandWithCache(slideContents, DeckContext.of(slideContents), maxTokens, model, OpenAIExpander::requestSingle, null, null);
+    }
 
-        StringBuilder prompt = new StringBuilder("Expand on the following PowerPoint slide contents:\n\n");
+    public static String expandSlideContentsChunked(List<SlideContent> slideContents, int maxTokens, String model) {
+        return expandWithCache(slideContents, DeckContext.of(slideContents), maxTokens, model, OpenAIExpander::requestChunked, null, null);
+    }
+
+    // Hears about each slide once its text is final: taken from the manifest or cache, or part of a request
+    // (a whole deck, or one chunk) whose response passed its checks. Failed slides are reported with their
+    // FAILED_SLIDE_PREFIX text. Chunks finish on their own threads, so calls may come concurrently.
+    public interface CompletionListener {
+        void onCompleted(int index, String expandedContent);
+    }
+
+    // Where a list of slides sits in its deck: the deck number of each slide, the deck's slide count and an
+    // outline of the whole deck. Prompts for part of a deck use it so the model sees the slides as they are
+    // numbered in the presentation, next to the same outline every other part gets.
+    public static class DeckContext {
+        private final int[] slideNumbers;
+        private final int totalSlides;
+        private final String outline;
+
+        private DeckContext(int[] slideNumbers, int totalSlides, String outline) {
+            this.slideNumbers = slideNumbers;
+            this.totalSlides = totalSlides;
+            this.outline = outline;
+        }
+
+        public static DeckContext of(List<SlideContent> deck) {
+            int[] slideNumbers = new int[deck.size()];
+            for (int i = 0; i < slideNumbers.length; i++) {
+                slideNumbers[i] = i + 1;
+            }
+            return new DeckContext(slideNumbers, deck.size(), buildDeckOutline(deck));
+        }
+
+        // The context of the slides at the given positions of this list.
+        public DeckContext subset(List<Integer> indexes) {
+            int[] subsetNumbers = new int[indexes.size()];
+            for (int j = 0; j < subsetNumbers.length; j++) {
+                subsetNumbers[j] = slideNumbers[indexes.get(j)];
+            }
+            return new DeckContext(subsetNumbers, totalSlides, outline);
+        }
+
+        int slideNumber(int index) {
+            return slideNumbers[index];
+        }
+
+        String range(int start, int end) {
+            return start < end ? "slides " + slideNumbers[start] + " to " + slideNumbers[end - 1] : "slides 0 to 0";
+        }
+    }
+
+    public static String expandDeck(DeckManifest manifest, List<SlideContent> slideContents, int maxTokens, String model, boolean chunked) {
+        return expandDeck(manifest, slideContents, maxTokens, model, chunked, null, null);
+    }
+
+    // Re-expands only the slides whose content changed since the deck's manifest was last updated and keeps
+    // the stored (possibly hand-edited) text for the rest. The caller loads and saves the manifest. The
+    // listener, if any, hears about each slide as soon as its text is known, which may be long before the
+    // whole response is in; the returned JSON is still the complete result. The completion listener, if any,
+    // is where callers save finished slides (to the job journal) while the rest of the deck is still running.
+    public static String expandDeck(DeckManifest manifest, List<SlideContent> slideContents, int maxTokens, String model, boolean chunked,
+                                    SlideStreamParser.Listener listener, CompletionListener completed) {
+        return expandDeck(manifest, slideContents, DeckContext.of(slideContents), maxTokens, model, chunked, listener, completed);
+    }
+
+    // As above for part of a deck; the context numbers and outlines the slides as in the whole presentation.
+    public static String expandDeck(DeckManifest manifest, List<SlideContent> slideContents, DeckContext deck, int maxTokens, String model,
+                                    boolean chunked, SlideStreamParser.Listener listener, CompletionListener completed) {
+        String settingsHash = DeckManifest.settingsHash(model, maxTokens);
+        String[] expanded = new String[slideContents.size()];
+        List<SlideContent> changed = new ArrayList<>();
+        List<Integer> changedIndexes = new ArrayList<>();
         for (int i = 0; i < slideContents.size(); i++) {
-            SlideContent slide = slideContents.get(i);
-            prompt.append("Slide ").append(i + 1).append(":\n");
-            
-            if (slide.getText() != null) {
-                prompt.append(slide.getText()).append("\n");
+            expanded[i] = manifest.reusable(slideContents.get(i), settingsHash);
+            if (expanded[i] == null) {
+                changed.add(slideContents.get(i));
+                changedIndexes.add(i);
+                continue;
             }
-            
-            if (slide.getTable() != null) {
-                prompt.append("Table content:\n").append(slide.getTable()).append("\n");
+            if (listener != null) {
+                listener.onSlide(i, expanded[i]);
             }
-            
-            if (slide.getImageUrl() != null) {
-                String imageDescription = describeImage(slide.getImageUrl());
-                prompt.append("Image description: ").append(imageDescription).append("\n");
+            if (completed != null) {
+                completed.onCompleted(i, expanded[i]);
             }
-            
-            prompt.append("\n");
         }
-        prompt.append("Format your response as a JSON object with an array of 'slides', each containing an 'expandedContent' field for each slide.");
-        
-        messages.add(UserMessage.of(prompt.toString()));
+        LOGGER.info("Deck manifest: " + changed.size() + " of " + slideContents.size() + " slides changed since the last expansion");
 
-        LOGGER.info("Sending request to OpenAI API");
-        ChatRequest chatRequest = ChatRequest.builder()
-                .model(model)
-                .messages(messages)
-                .responseFormat(ResponseFormat.jsonSchema(JsonSchema.builder()
-                .name("SlideExpansion")
-                .schemaClass(SlideExpansion.class)
-                .build()))
-                .maxCompletionTokens(maxTokens)
-                .n(1)
-                .build();
+        if (!changed.isEmpty()) {
+            // The manifest learns each slide as its request finishes; the caller still decides when to save it
+            CompletionListener recording = (j, text) -> {
+                if (!text.startsWith(FAILED_SLIDE_PREFIX)) {
+                    manifest.recordExpansion(changed.get(j), settingsHash, text);
+                }
+                if (completed != null) {
+                    completed.onCompleted(changedIndexes.get(j), text);
+                }
+            };
+            JSONObject response = new JSONObject(expandWithCache(changed, deck.subset(changedIndexes), maxTokens, model,
+                    chunked ? OpenAIExpander::requestChunked : OpenAIExpander::requestSingle, remap(listener, changedIndexes), recording));
+            if (response.has("error")) {
+                return response.toString();
+            }
+            JSONArray slidesArray = response.getJSONArray("slides");
+            for (int j = 0; j < changed.size(); j++) {
+                int index = changedIndexes.get(j);
+                expanded[index] = j < slidesArray.length() ? slidesArray.getJSONObject(j).optString("expandedContent", "") : "";
+            }
+        }
+
+        JSONArray slidesArray = new JSONArray();
+        for (String expandedContent : expanded) {
+            slidesArray.put(new JSONObject().put("expandedContent", expandedContent));
+        }
+        return new JSONObject().put("slides", slidesArray).toString();
+    }
+
+    private interface ExpansionEngine {
+        String expand(List<SlideContent> slideContents, DeckContext deck, int maxTokens, String model, SlideStreamParser.Listener listener,
+                      CompletionListener completed);
+    }
+
+    private static SlideStreamParser.Listener remap(SlideStreamParser.Listener listener, List<Integer> indexes) {
+        if (listener == null) {
+            return null;
+        }
+        return (index, expandedContent) -> {
+            if (index < indexes.size()) {
+                listener.onSlide(indexes.get(index), expandedContent);
+            }
+        };
+    }
+
+    // Serves unchanged slides from the expansion cache and only sends the remaining slides to the engine.
+    private static String expandWithCache(List<SlideContent> slideContents, DeckContext deck, int maxTokens, String model,
+                                          ExpansionEngine engine, SlideStreamParser.Listener listener, CompletionListener completed) {
+        Metrics.Sample sample = EXPAND_TIMER.start();
+        try {
+            return expandThroughCache(slideContents, deck, maxTokens, model, engine, listener, completed);
+        } finally {
+            sample.close();
+        }
+    }
+
+    // Each finished request is written to the cache as soon as it completes, so a run that is cancelled or
+    // fails later keeps the chunks it already paid for.
+    private static String expandThroughCache(List<SlideContent> slideContents, DeckContext deck, int maxTokens, String model,
+                                             ExpansionEngine engine, SlideStreamParser.Listener listener, CompletionListener completed) {
+        if (!Settings.getBoolean("cache.expansion.enabled", true)) {
+            return engine.expand(slideContents, deck, maxTokens, model, listener, completed);
+        }
+
+        DiskCache cache = getExpansionCache();
+        String systemPrompt = Settings.get("system.prompt");
+        String[] keys = new String[slideContents.size()];
+        String[] expanded = new String[slideContents.size()];
+        List<SlideContent> misses = new ArrayList<>();
+        List<Integer> missIndexes = new ArrayList<>();
+        for (int i = 0; i < slideContents.size(); i++) {
+            keys[i] = expansionCacheKey(systemPrompt, model, maxTokens, slideContents.get(i));
+            expanded[i] = cache.getString(keys[i]);
+            if (expanded[i] == null) {
+                misses.add(slideContents.get(i));
+                missIndexes.add(i);
+                continue;
+            }
+            if (listener != null) {
+                listener.onSlide(i, expanded[i]);
+            }
+            if (completed != null) {
+                completed.onCompleted(i, expanded[i]);
+            }
+        }
+        LOGGER.info("Expansion cache: " + (slideContents.size() - misses.size()) + " of " + slideContents.size()
+                + " slides cached (total hits: " + cache.getHits() + ", misses: " + cache.getMisses() + ")");
+
+        if (!misses.isEmpty()) {
+            CompletionListener caching = (j, text) -> {
+                int index = missIndexes.get(j);
+                if (!text.startsWith(FAILED_SLIDE_PREFIX)) {
+                    cache.putString(keys[index], text);
+                }
+                if (completed != null) {
+                    completed.onCompleted(index, text);
+                }
+            };
+            JSONObject response = new JSONObject(engine.expand(misses, deck.subset(missIndexes), maxTokens, model,
+                    remap(listener, missIndexes), caching));
+            if (response.has("error")) {
+                return response.toString();
+            }
+            JSONArray slidesArray = response.getJSONArray("slides");
+            for (int j = 0; j < misses.size(); j++) {
+                int index = missIndexes.get(j);
+                expanded[index] = j < slidesArray.length() ? slidesArray.getJSONObject(j).optString("expandedContent", "") : "";
+            }
+        }
+
+        JSONArray slidesArray = new JSONArray();
+        for (String expandedContent : expanded) {
+            slidesArray.put(new JSONObject().put("expandedContent", expandedContent));
+        }
+        return new JSONObject().put("slides", slidesArray).toString();
+    }
+
+    private static String expansionCacheKey(String systemPrompt, String model, int maxTokens, SlideContent slide) {
+        String imageKey = slide.getImageHash() != null ? slide.getImageHash() : slide.getImageUrl();
+        return ContentHash.of("expansion-v1", systemPrompt, model, maxTokens,
+                ContentHash.normalize(slide.getText()), ContentHash.normalize(slide.getTable()), imageKey);
+    }
+
+    private static synchronized DiskCache getExpansionCache() {
+        if (expansionCache == null) {
+            long maxBytes = Settings.getInt("cache.expansion.max.mb", DEFAULT_EXPANSION_CACHE_MB) * 1024L * 1024L;
+            expansionCache = new DiskCache(Settings.getAppDir().resolve("cache").resolve("expansions"), ".txt", maxBytes);
+        }
+        return expansionCache;
+    }
+
+    public static long getCacheHits() {
+        return expansionCache == null ? 0 : expansionCache.getHits();
+    }
+
+    public static long getCacheMisses() {
+        return expansionCache == null ? 0 : expansionCache.getMisses();
+    }
+
+    private static String requestSingle(List<SlideContent> slideContents, DeckContext deck, int maxTokens, String model,
+                                        SlideStreamParser.Listener listener, CompletionListener completed) {
+        LOGGER.info("Expanding slide contents. Number of slides: " + slideContents.size() + ", Max tokens: " + maxTokens + ", Model: " + model);
+
+        List<String> imageDescriptions = describeImages(slideContents);
+        String prompt = buildSinglePrompt(slideContents, deck, imageDescriptions);
+
+        // A deck too large for one request is packed into several instead of being truncated
+        int promptTokens = TokenCounter.countPrompt(model, Settings.get("system.prompt"), prompt);
+        if (promptTokens > TokenCounter.promptBudget(model, maxTokens)) {
+            LOGGER.info("Prompt of " + promptTokens + " tokens does not fit " + model + " with " + maxTokens
+                    + " completion tokens, packing the slides into several requests");
+            return requestChunked(slideContents, deck, maxTokens, model, listener, completed);
+        }
+
+        LOGGER.info("Sending request to OpenAI API (" + promptTokens + " prompt tokens)");
+        ChatRequest chatRequest = buildExpansionRequest(Settings.get("system.prompt"), prompt, maxTokens, model);
 
         try {
-            var chatResponse = openAI.chatCompletions().create(chatRequest).join();
-            String content = chatResponse.firstContent();
+            String content = complete(chatRequest, listener).content;
             LOGGER.info("Raw API response: " + content);
             
             // Attempt to parse the JSON response
@@ -94,29 +345,561 @@ public class OpenAIExpander {
                     }
                     wrappedResponse.put("slides", slidesArray);
                     LOGGER.info("Wrapped response: " + wrappedResponse.toString(2));
+                    reportCompleted(wrappedResponse, slideContents.size(), completed);
                     return wrappedResponse.toString();
                 }
                 LOGGER.info("Returning original JSON response");
+                reportCompleted(jsonResponse, slideContents.size(), completed);
                 return jsonResponse.toString();
             } catch (JSONException e) {
                 LOGGER.warning("Failed to parse JSON response: " + e.getMessage());
                 return createErrorJson("Invalid JSON response from API: " + e.getMessage());
             }
         } catch (Exception e) {
+            Job.checkCancelled();
             LOGGER.severe("Error in API call: " + e.getMessage());
             return createErrorJson("Error in API call: " + e.getMessage());
         }
     }
 
+    // A single response only counts as finished if it has exactly one entry per slide sent.
+    private static void reportCompleted(JSONObject response, int count, CompletionListener completed) {
+        JSONArray slidesArray = response.getJSONArray("slides");
+        if (slidesArray.length() != count) {
+            LOGGER.warning("Expected " + count + " expanded slides but got " + slidesArray.length() + ", not saving this response");
+            return;
+        }
+        if (completed != null) {
+            for (int i = 0; i < count; i++) {
+                completed.onCompleted(i, slidesArray.getJSONObject(i).optString("expandedContent", ""));
+            }
+        }
+    }
+
+    private static String buildSinglePrompt(List<SlideContent> slideContents, DeckContext deck, List<String> imageDescriptions) {
+        StringBuilder prompt = new StringBuilder("Expand on the following PowerPoint slide contents:\n\n");
+        for (int i = 0; i < slideContents.size(); i++) {
+            appendSlide(prompt, deck.slideNumber(i), slideContents.get(i), imageDescriptions.get(i));
+        }
+        prompt.append("Format your response as a JSON object with an array of 'slides', each containing an 'expandedContent' field for each slide.");
+        return prompt.toString();
+    }
+
+    private static void appendSlide(StringBuilder prompt, int slideNumber, SlideContent slide, String imageDescription) {
+        prompt.append("Slide ").append(slideNumber).append(":\n");
+
+        if (slide.getText() != null) {
+            prompt.append(slide.getText()).append("\n");
+        }
+
+        if (slide.getTable() != null) {
+            prompt.append("Table content:\n").append(slide.getTable()).append("\n");
+        }
+
+        if (imageDescription != null) {
+            prompt.append("Image description: ").append(imageDescription).append("\n");
+        }
+
+        prompt.append("\n");
+    }
+
+    // maxTokens is trimmed to what the model can still produce after this prompt.
+    private static ChatRequest buildExpansionRequest(String systemPrompt, String userPrompt, int maxTokens, String model) {
+        List<ChatMessage> messages = new ArrayList<>();
+        messages.add(SystemMessage.of(systemPrompt));
+        messages.add(UserMessage.of(userPrompt));
+        int promptTokens = TokenCounter.countPrompt(model, systemPrompt, userPrompt);
+        return ChatRequest.builder()
+                .model(model)
+                .messages(messages)
+                .responseFormat(ResponseFormat.jsonSchema(JsonSchema.builder()
+                .name("SlideExpansion")
+                .schemaClass(SlideExpansion.class)
+                .build()))
+                .maxCompletionTokens(Math.max(1, TokenCounter.completionBudget(model, promptTokens, maxTokens)))
+                .n(1)
+                .build();
+    }
+
+    // Chunked mode: the deck is split into windows that fit a prompt token budget, the windows are
+    // expanded concurrently with a short shared outline of the deck, and the results are merged back
+    // in slide order. A window that fails is retried on its own and split in half if it keeps failing.
+    // All chunked runs share one pool, so expansion.parallelism bounds the requests of the whole process.
+    private static String requestChunked(List<SlideContent> slideContents, DeckContext deck, int maxTokens, String model,
+                                         SlideStreamParser.Listener listener, CompletionListener completed) {
+        ThreadPoolExecutor executor = getChunkExecutor();
+        LOGGER.info("Expanding slide contents in chunks. Number of slides: " + slideContents.size() + ", Max tokens per chunk: " + maxTokens
+                + ", Model: " + model + ", Parallelism: " + executor.getMaximumPoolSize());
+
+        List<String> imageDescriptions = describeImages(slideContents);
+        List<String> slidePrompts = new ArrayList<>(slideContents.size());
+        for (int i = 0; i < slideContents.size(); i++) {
+            StringBuilder slidePrompt = new StringBuilder();
+            appendSlide(slidePrompt, deck.slideNumber(i), slideContents.get(i), imageDescriptions.get(i));
+            slidePrompts.add(slidePrompt.toString());
+        }
+
+        List<int[]> windows = planWindows(slidePrompts, deck, maxTokens, model);
+        LOGGER.info("Split " + slideContents.size() + " slides into " + windows.size() + " chunks");
+
+        List<CompletableFuture<List<String>>> futures = new ArrayList<>(windows.size());
+        try {
+            for (int[] window : windows) {
+                futures.add(CompletableFuture.supplyAsync(Job.propagateSupplier(
+                        () -> expandWindow(slidePrompts, window[0], window[1], deck, maxTokens, model, listener, completed)),
+                        executor));
+            }
+
+            JSONArray slidesArray = new JSONArray();
+            for (CompletableFuture<List<String>> future : futures) {
+                for (String expandedContent : future.join()) {
+                    slidesArray.put(new JSONObject().put("expandedContent", expandedContent));
+                }
+            }
+            return new JSONObject().put("slides", slidesArray).toString();
+        } catch (Exception e) {
+            Job.checkCancelled();
+            LOGGER.severe("Error in chunked expansion: " + e.getMessage());
+            return createErrorJson("Error in API call: " + e.getMessage());
+        } finally {
+            // Chunks that have not started yet are not sent once the run has failed
+            futures.forEach(future -> future.cancel(false));
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getChunkExecutor() {
+        int parallelism = Math.max(1, Settings.getInt("expansion.parallelism", DEFAULT_EXPANSION_PARALLELISM));
+        if (chunkExecutor == null) {
+            chunkExecutor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread thread = new Thread(r, "expansion-chunk");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            chunkExecutor.allowCoreThreadTimeOut(true);
+        } else if (parallelism > chunkExecutor.getMaximumPoolSize()) {
+            chunkExecutor.setMaximumPoolSize(parallelism);
+            chunkExecutor.setCorePoolSize(parallelism);
+        } else if (parallelism < chunkExecutor.getMaximumPoolSize()) {
+            chunkExecutor.setCorePoolSize(parallelism);
+            chunkExecutor.setMaximumPoolSize(parallelism);
+        }
+        return chunkExecutor;
+    }
+
+    // Greedily groups consecutive slides into [start, end) windows under the prompt token budget, which is
+    // the configured chunk size but never more than the model has room for next to the outline and reply.
+    private static List<int[]> planWindows(List<String> slidePrompts, DeckContext deck, int maxTokens, String model) {
+        int fixedTokens = TokenCounter.countPrompt(model, Settings.get("system.prompt"), windowPrompt(List.of(), 0, 0, deck));
+        int tokenBudget = Math.max(1, Math.min(Settings.getInt("expansion.chunk.tokens", DEFAULT_CHUNK_TOKENS),
+                TokenCounter.promptBudget(model, maxTokens) - fixedTokens));
+        int maxSlides = Math.max(1, Settings.getInt("expansion.chunk.slides", DEFAULT_CHUNK_SLIDES));
+
+        List<int[]> windows = new ArrayList<>();
+        int start = 0;
+        int tokens = 0;
+        for (int i = 0; i < slidePrompts.size(); i++) {
+            int slideTokens = TokenCounter.count(model, slidePrompts.get(i));
+            boolean full = i - start >= maxSlides || tokens + slideTokens > tokenBudget;
+            if (i > start && full) {
+                windows.add(new int[] {start, i});
+                start = i;
+                tokens = 0;
+            }
+            tokens += slideTokens;
+        }
+        if (start < slidePrompts.size()) {
+            windows.add(new int[] {start, slidePrompts.size()});
+        }
+        return windows;
+    }
+
+    private static List<String> expandWindow(List<String> slidePrompts, int start, int end, DeckContext deck,
+                                             int maxTokens, String model, SlideStreamParser.Listener listener,
+                                             CompletionListener completed) {
+        int retries = Math.max(0, Settings.getInt("expansion.chunk.retries", DEFAULT_CHUNK_RETRIES));
+        String lastError = null;
+        for (int attempt = 1; attempt <= retries + 1; attempt++) {
+            Job.checkCancelled();
+            try {
+                return requestWindow(slidePrompts, start, end, deck, maxTokens, model, listener, completed);
+            } catch (Exception e) {
+                Job.checkCancelled();
+                lastError = e.getMessage();
+                Metrics.counter("openai.chunk.retries").increment();
+                LOGGER.warning("Chunk for " + deck.range(start, end) + " failed (attempt " + attempt + " of " + (retries + 1) + "): " + lastError);
+            }
+        }
+
+        if (end - start > 1) {
+            int middle = start + (end - start) / 2;
+            LOGGER.info("Splitting chunk for " + deck.range(start, end) + " and retrying the halves");
+            List<String> results = new ArrayList<>(expandWindow(slidePrompts, start, middle, deck, maxTokens, model, listener, completed));
+            results.addAll(expandWindow(slidePrompts, middle, end, deck, maxTokens, model, listener, completed));
+            return results;
+        }
+
+        LOGGER.severe("Giving up on slide " + deck.slideNumber(start) + ": " + lastError);
+        String failed = FAILED_SLIDE_PREFIX + lastError + "]";
+        if (listener != null) {
+            listener.onSlide(start, failed);
+        }
+        if (completed != null) {
+            completed.onCompleted(start, failed);
+        }
+        return List.of(failed);
+    }
+
+    // A window's slides are only reported once the whole response has passed the checks below, so text from
+    // a truncated or miscounted attempt never reaches the listener. Windows are small, so nothing is lost by
+    // not streaming them.
+    private static List<String> requestWindow(List<String> slidePrompts, int start, int end, DeckContext deck,
+                                              int maxTokens, String model, SlideStreamParser.Listener listener,
+                                              CompletionListener completed) {
+        int count = end - start;
+        String prompt = windowPrompt(slidePrompts, start, end, deck);
+        ChatRequest chatRequest = buildExpansionRequest(Settings.get("system.prompt"), prompt, maxTokens, model);
+        Completion completion = complete(chatRequest, null);
+        if ("length".equals(completion.finishReason)) {
+            throw new IllegalStateException("Response was truncated at " + chatRequest.getMaxCompletionTokens() + " tokens");
+        }
+
+        JSONArray slidesArray = new JSONObject(completion.content).getJSONArray("slides");
+        if (slidesArray.length() != count) {
+            throw new IllegalStateException("Expected " + count + " slides but got " + slidesArray.length());
+        }
+        List<String> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            results.add(slidesArray.getJSONObject(i).getString("expandedContent"));
+        }
+        for (int i = 0; i < count; i++) {
+            if (listener != null) {
+                listener.onSlide(start + i, results.get(i));
+            }
+            if (completed != null) {
+                completed.onCompleted(start + i, results.get(i));
+            }
+        }
+        return results;
+    }
+
+    private static class Completion {
+        final String content;
+        final String finishReason;
+        final Usage usage;
+
+        Completion(String content, String finishReason, Usage usage) {
+            this.content = content;
+            this.finishReason = finishReason;
+            this.usage = usage;
+        }
+    }
+
+    // Sends a chat request. When someone is listening and expansion.streaming is on, the response is read
+    // as a stream and each slide is reported the moment its expandedContent string is complete.
+    private static Completion complete(ChatRequest chatRequest, SlideStreamParser.Listener listener) {
+        PipelineEvents.ChatCompletion event = new PipelineEvents.ChatCompletion();
+        event.begin();
+        Completion completion = null;
+        Metrics.Sample sample = CHAT_TIMER.start();
+        try {
+            completion = requestCompletion(chatRequest, listener);
+            return completion;
+        } catch (RuntimeException e) {
+            event.error = e.getMessage();
+            throw e;
+        } finally {
+            sample.close();
+            if (event.shouldCommit()) {
+                event.model = chatRequest.getModel();
+                event.streamed = isStreamed(listener);
+                if (completion != null) {
+                    event.finishReason = completion.finishReason;
+                    event.responseBytes = completion.content != null ? completion.content.getBytes(StandardCharsets.UTF_8).length : 0;
+                    if (completion.usage != null) {
+                        event.promptTokens = completion.usage.getPromptTokens() != null ? completion.usage.getPromptTokens() : 0;
+                        event.completionTokens = completion.usage.getCompletionTokens() != null ? completion.usage.getCompletionTokens() : 0;
+                    }
+                }
+                event.commit();
+            }
+        }
+    }
+
+    private static boolean isStreamed(SlideStreamParser.Listener listener) {
+        return listener != null && Settings.getBoolean("expansion.streaming", true);
+    }
+
+    private static Completion requestCompletion(ChatRequest chatRequest, SlideStreamParser.Listener listener) {
+        if (!isStreamed(listener)) {
+            Chat chatResponse = openAI().chatCompletions().create(chatRequest).join();
+            Usage usage = recordUsage(chatResponse);
+            return new Completion(chatResponse.firstContent(), chatResponse.getChoices().get(0).getFinishReason(), usage);
+        }
+
+        SlideStreamParser parser = new SlideStreamParser(listener);
+        String[] finishReason = new String[1];
+        Usage[] usage = new Usage[1];
+        long started = System.nanoTime();
+        // Usage is only reported in a final chunk when it is asked for
+        ChatRequest streamRequest = chatRequest.withStreamOptions(StreamOptions.of(true));
+        try (Stream<Chat> chunks = openAI().chatCompletions().createStream(streamRequest).join()) {
+            // The response is already in; cancelling the job now has to close the stream itself
+            Runnable removeCancelHook = Job.onCancel(chunks::close);
+            try {
+                chunks.forEach(chunk -> {
+                    Usage chunkUsage = recordUsage(chunk);
+                    if (chunkUsage != null) {
+                        usage[0] = chunkUsage;
+                    }
+                    if (chunk.getChoices() == null || chunk.getChoices().isEmpty()) {
+                        return;
+                    }
+                    Chat.Choice choice = chunk.getChoices().get(0);
+                    if (choice.getMessage() != null && choice.getMessage().getContent() != null) {
+                        int before = parser.getSlideCount();
+                        parser.feed(choice.getMessage().getContent());
+                        if (before == 0 && parser.getSlideCount() > 0) {
+                            LOGGER.info("First slide streamed after " + (System.nanoTime() - started) / 1_000_000 + " ms");
+                        }
+                    }
+                    if (choice.getFinishReason() != null) {
+                        finishReason[0] = choice.getFinishReason();
+                    }
+                });
+            } finally {
+                removeCancelHook.run();
+            }
+        }
+        Job.checkCancelled();
+        LOGGER.info("Streamed " + parser.getSlideCount() + " slides in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+        return new Completion(parser.getText(), finishReason[0], usage[0]);
+    }
+
+    private static String windowPrompt(List<String> slidePrompts, int start, int end, DeckContext deck) {
+        StringBuilder prompt = new StringBuilder();
+        prompt.append("Deck outline (for context only, do not expand):\n").append(deck.outline).append("\n");
+        prompt.append("Expand on the following PowerPoint slide contents (").append(deck.range(start, end))
+                .append(" of ").append(deck.totalSlides).append("):\n\n");
+        for (int i = start; i < end; i++) {
+            prompt.append(slidePrompts.get(i));
+        }
+        prompt.append("Format your response as a JSON object with an array of 'slides' containing exactly ").append(end - start)
+                .append(" entries, one per slide above in the same order, each with an 'expandedContent' field.");
+        return prompt.toString();
+    }
+
+    // A short outline built from the first line of every slide, shared by all chunks.
+    private static String buildDeckOutline(List<SlideContent> slideContents) {
+        StringBuilder outline = new StringBuilder();
+        for (int i = 0; i < slideContents.size() && outline.length() < MAX_OUTLINE_CHARS; i++) {
+            String text = slideContents.get(i).getText();
+            String title = text == null || text.isEmpty() ? "(no text)" : text.split("\n", 2)[0].trim();
+            if (title.length() > 80) {
+                title = title.substring(0, 80) + "...";
+            }
+            outline.append(i + 1).append(". ").append(title).append("\n");
+        }
+        return outline.toString();
+    }
+
+    // Estimates a deck before anything is sent: {prompt tokens, completion tokens at most, requests}. Images
+    // are counted as a typical description, since describing them is itself a request.
+    public static int[] estimateRequest(List<SlideContent> slideContents, int maxTokens, String model, boolean chunked) {
+        List<String> imageDescriptions = new ArrayList<>(slideContents.size());
+        String placeholder = "word ".repeat(IMAGE_DESCRIPTION_TOKENS);
+        for (SlideContent slide : slideContents) {
+            boolean hasImage = slide.getImageHash() != null || slide.getImageUrl() != null;
+            imageDescriptions.add(slide.getImageDescription() != null ? slide.getImageDescription() : hasImage ? placeholder : null);
+        }
+        String systemPrompt = Settings.get("system.prompt");
+        DeckContext deck = DeckContext.of(slideContents);
+        int singleTokens = TokenCounter.countPrompt(model, systemPrompt, buildSinglePrompt(slideContents, deck, imageDescriptions));
+        if (!chunked && singleTokens <= TokenCounter.promptBudget(model, maxTokens)) {
+            return new int[] {singleTokens, Math.min(maxTokens, TokenCounter.maxOutputTokens(model)), 1};
+        }
+
+        List<String> slidePrompts = new ArrayList<>(slideContents.size());
+        for (int i = 0; i < slideContents.size(); i++) {
+            StringBuilder slidePrompt = new StringBuilder();
+            appendSlide(slidePrompt, deck.slideNumber(i), slideContents.get(i), imageDescriptions.get(i));
+            slidePrompts.add(slidePrompt.toString());
+        }
+        int promptTokens = 0;
+        int completionTokens = 0;
+        List<int[]> windows = planWindows(slidePrompts, deck, maxTokens, model);
+        for (int[] window : windows) {
+            String prompt = windowPrompt(slidePrompts, window[0], window[1], deck);
+            int windowTokens = TokenCounter.countPrompt(model, systemPrompt, prompt);
+            promptTokens += windowTokens;
+            completionTokens += Math.max(0, TokenCounter.completionBudget(model, windowTokens, maxTokens));
+        }
+        return new int[] {promptTokens, completionTokens, windows.size()};
+    }
+
+    private static Usage recordUsage(Chat chatResponse) {
+        Usage usage = chatResponse.getUsage();
+        if (usage != null) {
+            promptTokens.add(usage.getPromptTokens() != null ? usage.getPromptTokens() : 0);
+            completionTokens.add(usage.getCompletionTokens() != null ? usage.getCompletionTokens() : 0);
+        }
+        return usage;
+    }
+
+    // Tokens reported by the API since startup, across all requests.
+    public static long getPromptTokens() {
+        return promptTokens.get();
+    }
+
+    public static long getCompletionTokens() {
+        return completionTokens.get();
+    }
+
     private static String createErrorJson(String errorMessage) {
         JSONObject errorJson = new JSONObject();
         errorJson.put("error", errorMessage);
         return errorJson.toString();
     }
 
-    private static String describeImage(String imageUrl) {
+    // Sends all image descriptions as one bounded batch and returns them in slide order. Each description is
+    // also kept on its SlideContent so later stages do not ask again. Slides without an image, or whose
+    // description failed or timed out, get null.
+    public static List<String> describeImages(List<SlideContent> slideContents) {
+        int timeoutSeconds = Settings.getInt("image.describe.timeout.seconds", DEFAULT_IMAGE_TIMEOUT_SECONDS);
+        ThreadPoolExecutor executor = getImageExecutor();
+
+        // Identical pictures share one vision call, and pictures described in earlier runs skip it entirely
+        Map<String, CompletableFuture<String>> futuresByImage = new HashMap<>();
+        List<CompletableFuture<String>> futures = new ArrayList<>(slideContents.size());
+        for (int i = 0; i < slideContents.size(); i++) {
+            SlideContent slide = slideContents.get(i);
+            String imageUrl = slide.getImageUrl();
+            if (imageUrl == null || slide.getImageDescription() != null) {
+                futures.add(CompletableFuture.completedFuture(slide.getImageDescription()));
+                continue;
+            }
+            String imageHash = slide.getImageHash();
+            String imageKey = imageHash != null ? imageHash : imageUrl;
+            int slideNumber = i + 1;
+            futures.add(futuresByImage.computeIfAbsent(imageKey, key -> {
+                CompletableFuture<String> prefetched = prefetchedDescriptions.remove(key);
+                if (prefetched != null) {
+                    return prefetched;
+                }
+                // A prefetch that finished in the meantime left its result on the slide
+                return slide.getImageDescription() != null
+                        ? CompletableFuture.completedFuture(slide.getImageDescription())
+                        : describeImageAsync(slide, slideNumber, executor, timeoutSeconds);
+            }));
+        }
+
+        LOGGER.info("Describing " + futuresByImage.size() + " distinct images with parallelism " + executor.getMaximumPoolSize());
+        List<String> descriptions = new ArrayList<>(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            String description = futures.get(i).join();
+            slideContents.get(i).setImageDescription(description);
+            descriptions.add(description);
+        }
+        return descriptions;
+    }
+
+    // Starts describing a slide's image while the rest of the deck is still being parsed. The result is
+    // picked up by the next describeImages call; slides whose expansion is already cached are skipped.
+    // Finished prefetches leave the map and keep their result on the slide (and in the image index), so
+    // runs that never ask for them do not leak entries.
+    public static void prefetchImageDescription(SlideContent slide, int slideNumber, int maxTokens, String model) {
+        if (slide.getImageUrl() == null || slide.getImageDescription() != null) {
+            return;
+        }
+        if (Settings.getBoolean("cache.expansion.enabled", true)
+                && getExpansionCache().contains(expansionCacheKey(Settings.get("system.prompt"), model, maxTokens, slide))) {
+            return;
+        }
+        String imageKey = slide.getImageHash() != null ? slide.getImageHash() : slide.getImageUrl();
+        int timeoutSeconds = Settings.getInt("image.describe.timeout.seconds", DEFAULT_IMAGE_TIMEOUT_SECONDS);
+        CompletableFuture<String> started = new CompletableFuture<>();
+        if (prefetchedDescriptions.putIfAbsent(imageKey, started) != null) {
+            return;
+        }
+        started.thenAccept(description -> {
+            if (description != null && slide.getImageDescription() == null) {
+                slide.setImageDescription(description);
+            }
+            prefetchedDescriptions.remove(imageKey, started);
+        });
+        describeImageAsync(slide, slideNumber, getImageExecutor(), timeoutSeconds).thenAccept(started::complete);
+    }
+
+    private static CompletableFuture<String> describeImageAsync(SlideContent slide, int slideNumber, Executor executor, int timeoutSeconds) {
+        String imageHash = slide.getImageHash();
+        String cached = ImageIndex.getDescription(imageHash);
+        if (cached != null) {
+            LOGGER.info("Using stored image description for slide " + slideNumber);
+            return CompletableFuture.completedFuture(cached);
+        }
+        return CompletableFuture.supplyAsync(Job.propagateSupplier(() -> {
+            try {
+                Job.checkCancelled();
+                String description = describeImage(slide.getImageUrl(), slideNumber, timeoutSeconds);
+                ImageIndex.putDescription(imageHash, description);
+                return description;
+            } catch (Exception e) {
+                LOGGER.warning("Image description failed for slide " + slideNumber + ": " + e);
+                return null;
+            }
+        }), executor);
+    }
+
+    private static synchronized ThreadPoolExecutor getImageExecutor() {
+        int parallelism = Math.max(1, Settings.getInt("image.describe.parallelism", DEFAULT_IMAGE_PARALLELISM));
+        if (imageExecutor == null) {
+            imageExecutor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread thread = new Thread(r, "image-describe");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            imageExecutor.allowCoreThreadTimeOut(true);
+        } else if (parallelism > imageExecutor.getMaximumPoolSize()) {
+            imageExecutor.setMaximumPoolSize(parallelism);
+            imageExecutor.setCorePoolSize(parallelism);
+        } else if (parallelism < imageExecutor.getMaximumPoolSize()) {
+            imageExecutor.setCorePoolSize(parallelism);
+            imageExecutor.setMaximumPoolSize(parallelism);
+        }
+        return imageExecutor;
+    }
+
+    private static String describeImage(String imageUrl, int slideNumber, int timeoutSeconds) throws Exception {
+        PipelineEvents.ImageDescribe event = new PipelineEvents.ImageDescribe();
+        event.begin();
+        Metrics.Sample sample = DESCRIBE_TIMER.start();
+        Usage usage = null;
+        try {
+            Chat chatResponse = requestDescription(imageUrl, timeoutSeconds);
+            usage = recordUsage(chatResponse);
+            return chatResponse.firstContent();
+        } catch (Exception e) {
+            event.error = e.getMessage();
+            throw e;
+        } finally {
+            sample.close();
+            if (event.shouldCommit()) {
+                event.slideNumber = slideNumber;
+                event.model = IMAGE_MODEL;
+                event.inlineBytes = imageUrl.startsWith("data:") ? imageUrl.length() : 0;
+                if (usage != null) {
+                    event.promptTokens = usage.getPromptTokens() != null ? usage.getPromptTokens() : 0;
+                    event.completionTokens = usage.getCompletionTokens() != null ? usage.getCompletionTokens() : 0;
+                }
+                event.commit();
+            }
+        }
+    }
+
+    private static Chat requestDescription(String imageUrl, int timeoutSeconds) throws Exception {
         var chatRequest = ChatRequest.builder()
-                .model("gpt-4o-mini")
+                .model(IMAGE_MODEL)
                 .messages(List.of(
                         UserMessage.of(List.of(
                             ContentPartText.of("What do you see in the image? Give in details in no more than 100 words."),
@@ -124,8 +907,16 @@ public class OpenAIExpander {
                 .temperature(0.0)
                 .maxCompletionTokens(1000)
                 .build();
-        var chatResponse = openAI.chatCompletions().create(chatRequest).join();
-        return chatResponse.firstContent();
+        List<Future<?>> requests = new ArrayList<>();
+        var future = ThrottledHttpClient.capture(requests, () -> openAI().chatCompletions().create(chatRequest));
+        try {
+            return future.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            // Frees the connection and the rate limiter slot, not just this caller
+            future.cancel(true);
+            requests.forEach(request -> request.cancel(true));
+            throw new TimeoutException("Image description timed out after " + timeoutSeconds + " seconds");
+        }
     }
 
     public static class SlideExpansion {
@@ -0,0 +1,161 @@
+package com.powerpoint.expander;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Flight Recorder events for each pipeline stage and outbound API call, so a recording of a slow run shows
+// where the time went next to GC and thread activity:
+//
+//   java -XX:StartFlightRecording=filename=run.jfr -jar PowerPointExpander.jar ...
+//
+// Callers create the event, begin() it before the work and fill in the fields only if shouldCommit() is
+// true, so nothing beyond the allocation is spent while no recording is running. The event stays in the
+// method that creates it (status and usage come back from the request as values), or is handed only to the
+// small commit helpers, which get inlined, so escape analysis can remove even the allocation.
+final class PipelineEvents {
+    private static final String CATEGORY = "PowerPoint Expander";
+
+    private PipelineEvents() {
+    }
+
+    @Name("com.powerpoint.expander.SlideParse")
+    @Label("Slide Parse")
+    @Description("Text, table and picture extraction for one slide")
+    @Category({CATEGORY, "Parsing"})
+    @StackTrace(false)
+    static class SlideParse extends Event {
+        @Label("Slide Number")
+        int slideNumber;
+
+        @Label("Parser")
+        String parser;
+
+        @Label("Text Length")
+        int textLength;
+
+        @Label("Has Table")
+        boolean hasTable;
+
+        @Label("Has Image")
+        boolean hasImage;
+    }
+
+    @Name("com.powerpoint.expander.TableParse")
+    @Label("Table Parse")
+    @Category({CATEGORY, "Parsing"})
+    @StackTrace(false)
+    static class TableParse extends Event {
+        @Label("Slide Number")
+        int slideNumber;
+
+        @Label("Rows")
+        int rows;
+
+        @Label("Text Length")
+        int textLength;
+    }
+
+    @Name("com.powerpoint.expander.ImageUpload")
+    @Label("Image Upload")
+    @Description("Upload of a slide picture to Cloudinary")
+    @Category({CATEGORY, "API"})
+    @StackTrace(false)
+    static class ImageUpload extends Event {
+        @Label("Slide Number")
+        int slideNumber;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("HTTP Status")
+        int httpStatus;
+
+        @Label("Error")
+        String error;
+    }
+
+    @Name("com.powerpoint.expander.ImageDescribe")
+    @Label("Image Describe")
+    @Description("Vision request describing one slide picture")
+    @Category({CATEGORY, "API"})
+    @StackTrace(false)
+    static class ImageDescribe extends Event {
+        @Label("Slide Number")
+        int slideNumber;
+
+        @Label("Model")
+        String model;
+
+        @Label("Inline Image Size")
+        @Description("Size of the base64 data URL when the picture is sent inline, 0 for uploaded pictures")
+        @DataAmount
+        long inlineBytes;
+
+        @Label("Prompt Tokens")
+        long promptTokens;
+
+        @Label("Completion Tokens")
+        long completionTokens;
+
+        @Label("Error")
+        String error;
+    }
+
+    @Name("com.powerpoint.expander.ChatCompletion")
+    @Label("Chat Completion")
+    @Description("Expansion request for a deck or a chunk of slides")
+    @Category({CATEGORY, "API"})
+    @StackTrace(false)
+    static class ChatCompletion extends Event {
+        @Label("Model")
+        String model;
+
+        @Label("Streamed")
+        boolean streamed;
+
+        @Label("Prompt Tokens")
+        long promptTokens;
+
+        @Label("Completion Tokens")
+        long completionTokens;
+
+        @Label("Response Size")
+        @DataAmount
+        long responseBytes;
+
+        @Label("Finish Reason")
+        String finishReason;
+
+        @Label("Error")
+        String error;
+    }
+
+    @Name("com.powerpoint.expander.TtsSynthesis")
+    @Label("TTS Synthesis")
+    @Description("ElevenLabs request for one piece of narration")
+    @Category({CATEGORY, "API"})
+    @StackTrace(false)
+    static class TtsSynthesis extends Event {
+        @Label("Characters")
+        int characters;
+
+        @Label("Audio Size")
+        @DataAmount
+        long audioBytes;
+
+        @Label("HTTP Status")
+        int httpStatus;
+
+        @Label("Attempts")
+        int attempts;
+
+        @Label("Error")
+        String error;
+    }
+}
@@ -7,9 +7,12 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,17 +20,35 @@ public class PowerPointExpander {
     private JFrame frame;
     private JButton selectFileButton;
     private JButton expandButton;
+    private JButton expandAndNarrateButton;
     private JButton generateAudioButton;
+    private JButton generateAllAudioButton;
+    private JButton cancelButton;
+    // The expansion or narration run in progress, which the Cancel button stops
+    private volatile Job currentJob;
     private JLabel statusLabel;
     private JTextArea[] slideTextAreas;
     private JTabbedPane tabbedPane;
     private JProgressBar progressBar;
     private File selectedFile;
     private JTextField maxTokensField;
+    private JCheckBox chunkedModeCheckBox;
     private JComboBox<String> modelSelector;
     private JLabel pricingLabel;
+    private JLabel estimateLabel;
+    private List<SlideContent> estimateSlides;
+    private Timer estimateTimer;
+    // Bumped for every estimate started, so a slow one never overwrites a newer result
+    private int estimateGeneration;
+    // The deck and slide ids behind the current tabs, so edits made in them can be kept for the next run
+    private File displayedDeck;
+    private List<String> displayedSlideIds;
     private JButton settingsButton;
+    private boolean audioBusy;
     private static final Logger LOGGER = Logger.getLogger(PowerPointExpander.class.getName());
+    private static final int ESTIMATE_DELAY_MILLIS = 300;
+    // Client property set on a slide tab's text area once the user has typed in it
+    private static final String EDITED = "slideEdited";
 
     private static final Map<String, String> MODEL_PRICING = new HashMap<>();
     static {
@@ -37,6 +58,13 @@ public class PowerPointExpander {
         // Add more models and their pricing here
     }
 
+    // {input, output} dollars per 1K tokens, used for the estimate shown before expanding
+    private static final Map<String, double[]> MODEL_PRICES = new HashMap<>();
+    static {
+        MODEL_PRICES.put("gpt-4o-mini", new double[] {0.000150, 0.000600});
+        MODEL_PRICES.put("gpt-3.5-turbo-0125", new double[] {0.0005, 0.0015});
+    }
+
     public PowerPointExpander() {
         initializeGUI();
     }
@@ -44,6 +72,12 @@ public class PowerPointExpander {
     private void initializeGUI() {
         frame = new JFrame("PowerPoint Expander");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosing(java.awt.event.WindowEvent e) {
+                saveManualEdits();
+            }
+        });
         frame.setSize(1000, 800);
         frame.setLayout(new BorderLayout());
 
@@ -69,12 +103,23 @@ public class PowerPointExpander {
         selectFileButton = new JButton("Select PowerPoint File");
         expandButton = new JButton("Expand Presentation");
         expandButton.setEnabled(false);  // Initially disabled
+        expandAndNarrateButton = new JButton("Expand and narrate");
+        expandAndNarrateButton.setEnabled(false);
+        expandAndNarrateButton.setToolTipText("Expand the presentation and generate audio for each slide as soon as its text is ready");
         generateAudioButton = new JButton("Generate audio for this slide");
         generateAudioButton.setEnabled(false);
+        generateAllAudioButton = new JButton("Generate audio for all slides");
+        generateAllAudioButton.setEnabled(false);
+        cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
+        cancelButton.setToolTipText("Stop the current run. Finished slides are kept, and the next run continues from there.");
 
         actionPanel.add(selectFileButton);
         actionPanel.add(expandButton);
+        actionPanel.add(expandAndNarrateButton);
         actionPanel.add(generateAudioButton);
+        actionPanel.add(generateAllAudioButton);
+        actionPanel.add(cancelButton);
         mainTopPanel.add(actionPanel, BorderLayout.CENTER);
 
         // Bottom panel for settings and options
@@ -96,7 +141,10 @@ public class PowerPointExpander {
         JPanel modelPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
         modelPanel.add(new JLabel("Model:"));
         modelSelector = new JComboBox<>(MODEL_PRICING.keySet().toArray(new String[0]));
-        modelSelector.addActionListener(e -> updatePricingInfo());
+        modelSelector.addActionListener(e -> {
+            updatePricingInfo();
+            updateEstimate();
+        });
         modelSelector.setRenderer(new DefaultListCellRenderer() {
             @Override
             public Component getListCellRendererComponent(JList<?> list, Object value, 
@@ -124,8 +172,40 @@ public class PowerPointExpander {
                 "Higher values allow for longer responses but may increase processing time and costs.</html>");
         tokenInfoLabel.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
         tokenPanel.add(tokenInfoLabel);
+        maxTokensField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                updateEstimate();
+            }
+
+            @Override
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                updateEstimate();
+            }
+
+            @Override
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+                updateEstimate();
+            }
+        });
         optionsPanel.add(tokenPanel);
 
+        // Expansion mode
+        chunkedModeCheckBox = new JCheckBox("Parallel chunks", Settings.getBoolean("expansion.chunked", false));
+        chunkedModeCheckBox.setToolTipText("<html>Split the presentation into smaller requests that run in parallel.<br>" +
+                "Max Tokens then applies to each chunk instead of the whole presentation.</html>");
+        chunkedModeCheckBox.addActionListener(e -> {
+            Settings.set("expansion.chunked", String.valueOf(chunkedModeCheckBox.isSelected()));
+            Settings.saveSettings();
+            updateEstimate();
+        });
+        optionsPanel.add(chunkedModeCheckBox);
+
+        estimateLabel = new JLabel();
+        estimateLabel.setToolTipText("<html>Counted locally with the model's tokenizer before anything is sent.<br>" +
+                "Output is the most the model may return; images are counted as a typical description.</html>");
+        optionsPanel.add(estimateLabel);
+
         // Buttons panel (right side of bottom)
         JPanel buttonsPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 5));
         
@@ -156,7 +236,10 @@ public class PowerPointExpander {
         // Add action listeners
         selectFileButton.addActionListener(e -> selectFile());
         expandButton.addActionListener(e -> expandPresentation());
+        expandAndNarrateButton.addActionListener(e -> expandAndNarratePresentation());
         generateAudioButton.addActionListener(e -> generateAudioForCurrentSlide());
+        generateAllAudioButton.addActionListener(e -> generateAudioForAllSlides());
+        cancelButton.addActionListener(e -> cancelCurrentJob());
 
         updatePricingInfo();
         frame.setVisible(true);
@@ -174,26 +257,180 @@ public class PowerPointExpander {
         JFileChooser fileChooser = new JFileChooser();
         int result = fileChooser.showOpenDialog(frame);
         if (result == JFileChooser.APPROVE_OPTION) {
+            saveManualEdits();
             selectedFile = fileChooser.getSelectedFile();
-            statusLabel.setText("Selected file: " + selectedFile.getName());
+            String unfinished = Job.describeUnfinished(selectedFile);
+            statusLabel.setText("Selected file: " + selectedFile.getName()
+                    + (unfinished != null ? " (the last run did not finish and will resume: " + unfinished + ")" : ""));
             expandButton.setEnabled(true);
+            expandAndNarrateButton.setEnabled(true);
+            loadEstimate(selectedFile);
         }
     }
 
+    // Reads the slide text in the background (no image uploads) so the estimate can be shown right away.
+    private void loadEstimate(File file) {
+        estimateSlides = null;
+        estimateLabel.setText("Estimating tokens...");
+        new SwingWorker<List<SlideContent>, Void>() {
+            @Override
+            protected List<SlideContent> doInBackground() throws Exception {
+                return PowerPointParser.parseSlideText(file);
+            }
+
+            @Override
+            protected void done() {
+                if (file != selectedFile) {
+                    return;
+                }
+                try {
+                    estimateSlides = get();
+                } catch (Exception e) {
+                    LOGGER.warning("Could not estimate tokens for " + file.getName() + ": " + e.getMessage());
+                }
+                updateEstimate();
+            }
+        }.execute();
+    }
+
+    // Waits for typing in the token field to pause, then tokenizes the deck off the Swing thread.
+    private void updateEstimate() {
+        if (estimateLabel == null) {
+            return;
+        }
+        if (estimateTimer == null) {
+            estimateTimer = new Timer(ESTIMATE_DELAY_MILLIS, e -> computeEstimate());
+            estimateTimer.setRepeats(false);
+        }
+        estimateTimer.restart();
+    }
+
+    private void computeEstimate() {
+        int generation = ++estimateGeneration;
+        String model = (String) modelSelector.getSelectedItem();
+        int maxTokens;
+        try {
+            maxTokens = Integer.parseInt(maxTokensField.getText().trim());
+        } catch (NumberFormatException e) {
+            maxTokens = 0;
+        }
+        if (estimateSlides == null || maxTokens <= 0 || !MODEL_PRICES.containsKey(model)) {
+            estimateLabel.setText("");
+            return;
+        }
+
+        List<SlideContent> slides = estimateSlides;
+        int requestedTokens = maxTokens;
+        boolean chunked = chunkedModeCheckBox.isSelected();
+        new SwingWorker<int[], Void>() {
+            @Override
+            protected int[] doInBackground() {
+                return OpenAIExpander.estimateRequest(slides, requestedTokens, model, chunked);
+            }
+
+            @Override
+            protected void done() {
+                if (generation != estimateGeneration) {
+                    return;
+                }
+                int[] estimate;
+                try {
+                    estimate = get();
+                } catch (Exception e) {
+                    LOGGER.warning("Could not estimate tokens: " + e.getMessage());
+                    estimateLabel.setText("");
+                    return;
+                }
+                double[] prices = MODEL_PRICES.get(model);
+                double cost = estimate[0] / 1000.0 * prices[0] + estimate[1] / 1000.0 * prices[1];
+                estimateLabel.setText(String.format("Estimate: %,d prompt + up to %,d output tokens, %d request%s, about $%.4f",
+                        estimate[0], estimate[1], estimate[2], estimate[2] == 1 ? "" : "s", cost));
+            }
+        }.execute();
+    }
+
     private void expandPresentation() {
         if (selectedFile != null) {
-            SwingWorker<JSONObject, Void> worker = new SwingWorker<JSONObject, Void>() {
+            saveManualEdits();
+            File deck = selectedFile;
+            SwingWorker<JSONObject, Runnable> worker = new SwingWorker<JSONObject, Runnable>() {
+                private final List<String> slideIds = new ArrayList<>();
+                private boolean[] received;
+                private int receivedCount;
+
                 @Override
                 protected JSONObject doInBackground() throws Exception {
-                    statusLabel.setText("Parsing PowerPoint...");
-                    List<SlideContent> slideContents = PowerPointParser.parseSlides(selectedFile);
+                    Job job = Job.start(deck, "expand");
+                    currentJob = job;
+                    return job.run(() -> expand(job));
+                }
 
-                    statusLabel.setText("Expanding content with OpenAI...");
+                private JSONObject expand(Job job) throws Exception {
+                    statusLabel.setText(job.isResumed() ? "Resuming the last run..." : "Parsing PowerPoint...");
                     int maxTokens = Integer.parseInt(maxTokensField.getText());
                     String selectedModel = (String) modelSelector.getSelectedItem();
-                    String jsonResponse = OpenAIExpander.expandSlideContents(slideContents, maxTokens, selectedModel);
+                    String settingsHash = DeckManifest.settingsHash(selectedModel, maxTokens);
+                    List<SlideContent> slideContents = new ArrayList<>();
+                    // Image descriptions start while the remaining slides are still being parsed
+                    PowerPointParser.parseSlides(deck, (index, slide) -> {
+                        Job.checkCancelled();
+                        slideContents.add(slide);
+                        job.recordParsed(index, slide);
+                        job.restoreDescription(slide);
+                        OpenAIExpander.prefetchImageDescription(slide, index + 1, maxTokens, selectedModel);
+                        SwingUtilities.invokeLater(() -> statusLabel.setText("Parsed slide " + (index + 1) + "..."));
+                    });
+
+                    statusLabel.setText("Expanding content with OpenAI...");
+                    int slideCount = slideContents.size();
+                    received = new boolean[slideCount];
+                    publish(() -> createSlideTabs(0));
+                    // Only slides changed since the last run are sent; hand edits of the others are kept.
+                    // Each slide gets its tab as soon as its text is complete, while the rest is still streaming,
+                    // and is journaled once its request has finished, so cancelling keeps every finished chunk.
+                    DeckManifest manifest = DeckManifest.load(deck);
+                    job.restoreExpansions(manifest, slideContents, settingsHash);
+                    String jsonResponse = OpenAIExpander.expandDeck(manifest, slideContents, maxTokens, selectedModel, chunkedModeCheckBox.isSelected(),
+                            (index, text) -> publish(() -> {
+                                ensureSlideTabs(index + 1);
+                                setSlideText(index, text);
+                                tabbedPane.setTitleAt(index, "Slide " + (index + 1));
+                                if (!received[index]) {
+                                    received[index] = true;
+                                    receivedCount++;
+                                }
+                                statusLabel.setText("Expanding content with OpenAI: " + receivedCount + " of " + slideCount + " slides received...");
+                            }),
+                            (index, text) -> {
+                                SlideContent slide = slideContents.get(index);
+                                job.recordDescribed(index, slide);
+                                job.recordExpanded(index, slide, settingsHash, text);
+                            });
                     LOGGER.info("JSON response from OpenAIExpander: " + jsonResponse);
-                    return new JSONObject(jsonResponse);
+                    JSONObject expandedContent = new JSONObject(jsonResponse);
+                    if (expandedContent.has("error")) {
+                        job.markFailed(expandedContent.getString("error"));
+                        return expandedContent;
+                    }
+                    manifest.retain(slideContents);
+                    manifest.save();
+                    JSONArray slidesArray = expandedContent.getJSONArray("slides");
+                    for (int i = 0; i < slideContents.size(); i++) {
+                        SlideContent slide = slideContents.get(i);
+                        slideIds.add(DeckManifest.idOf(slide));
+                        String text = i < slidesArray.length() ? slidesArray.getJSONObject(i).optString("expandedContent", "") : "";
+                        if (text.startsWith(OpenAIExpander.FAILED_SLIDE_PREFIX)) {
+                            job.markFailed("Slide " + (i + 1) + " failed to expand");
+                        }
+                    }
+                    return expandedContent;
+                }
+
+                @Override
+                protected void process(List<Runnable> updates) {
+                    for (Runnable update : updates) {
+                        update.run();
+                    }
                 }
 
                 @Override
@@ -202,19 +439,30 @@ public class PowerPointExpander {
                         JSONObject expandedContent = get();
                         LOGGER.info("Expanded content received in PowerPointExpander: " + expandedContent.toString(2));
                         displayExpandedContent(expandedContent);
+                        if (!expandedContent.has("error")) {
+                            displayedDeck = deck;
+                            displayedSlideIds = slideIds;
+                        }
+                        LOGGER.info("HTTP connections: " + HttpTransport.getStats());
                     } catch (Exception e) {
+                        if (isCancellation(e)) {
+                            statusLabel.setText("Cancelled. Expanding again continues where this run stopped.");
+                            return;
+                        }
                         LOGGER.severe("Error in PowerPointExpander: " + e.getMessage());
                         e.printStackTrace();
                         statusLabel.setText("Error: " + e.getMessage());
                     } finally {
                         progressBar.setVisible(false);
                         expandButton.setEnabled(true);
+                        setJobRunning(false);
                     }
                 }
             };
 
             expandButton.setEnabled(false);
             progressBar.setVisible(true);
+            setJobRunning(true);
             worker.execute();
         } else {
             JOptionPane.showMessageDialog(frame, "Please select a PowerPoint file first.");
@@ -228,25 +476,168 @@ public class PowerPointExpander {
         }
 
         JSONArray slidesArray = expandedContentJson.getJSONArray("slides");
-        int slideCount = slidesArray.length();
-        slideTextAreas = new JTextArea[slideCount];
+        // Tabs already filled while streaming are kept, so the selected tab does not jump
+        if (slideTextAreas == null || slideTextAreas.length > slidesArray.length()) {
+            createSlideTabs(slidesArray.length());
+        }
+        ensureSlideTabs(slidesArray.length());
+        for (int i = 0; i < slidesArray.length(); i++) {
+            JSONObject slideObject = slidesArray.getJSONObject(i);
+            setSlideText(i, slideObject.getString("expandedContent"));
+            tabbedPane.setTitleAt(i, "Slide " + (i + 1));
+        }
+
+        updateGenerateAudioButton();
+        statusLabel.setText("Content expanded. You can now edit the content and generate audio for each slide.");
+    }
 
+    private void createSlideTabs(int slideCount) {
+        displayedSlideIds = null;
+        slideTextAreas = new JTextArea[0];
         tabbedPane.removeAll();
+        ensureSlideTabs(slideCount);
+    }
 
-        for (int i = 0; i < slideCount; i++) {
-            JSONObject slideObject = slidesArray.getJSONObject(i);
-            String expandedContentParsed = slideObject.getString("expandedContent");
-            
-            JTextArea slideTextArea = new JTextArea(expandedContentParsed);
+    // Appends tabs up to slideCount; slides that arrive out of order leave a placeholder for the ones before them.
+    private void ensureSlideTabs(int slideCount) {
+        int existing = slideTextAreas.length;
+        if (slideCount <= existing) {
+            return;
+        }
+        slideTextAreas = Arrays.copyOf(slideTextAreas, slideCount);
+        for (int i = existing; i < slideCount; i++) {
+            JTextArea slideTextArea = new JTextArea();
             slideTextArea.setWrapStyleWord(true);
             slideTextArea.setLineWrap(true);
+            slideTextArea.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+                @Override
+                public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                    slideTextArea.putClientProperty(EDITED, Boolean.TRUE);
+                }
+
+                @Override
+                public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                    slideTextArea.putClientProperty(EDITED, Boolean.TRUE);
+                }
+
+                @Override
+                public void changedUpdate(javax.swing.event.DocumentEvent e) {
+                }
+            });
             JScrollPane scrollPane = new JScrollPane(slideTextArea);
-            tabbedPane.addTab("Slide " + (i + 1), scrollPane);
+            tabbedPane.addTab("Slide " + (i + 1) + " (expanding...)", scrollPane);
             slideTextAreas[i] = slideTextArea;
         }
+    }
 
-        updateGenerateAudioButton();
-        statusLabel.setText("Content expanded. You can now edit the content and generate audio for each slide.");
+    // Shows generated text in a slide tab; only typing afterwards marks the tab as edited.
+    private void setSlideText(int index, String text) {
+        slideTextAreas[index].setText(text);
+        slideTextAreas[index].putClientProperty(EDITED, Boolean.FALSE);
+    }
+
+    // Expansion and narration overlap: each slide's audio is generated as soon as its text is ready.
+    private void expandAndNarratePresentation() {
+        if (selectedFile == null) {
+            JOptionPane.showMessageDialog(frame, "Please select a PowerPoint file first.");
+            return;
+        }
+
+        int maxTokens = Integer.parseInt(maxTokensField.getText());
+        String selectedModel = (String) modelSelector.getSelectedItem();
+        saveManualEdits();
+        File deck = selectedFile;
+        File outputDir = getAudioDirectory();
+        outputDir.mkdirs();
+        String deckName = getDeckName();
+
+        SwingWorker<NarrationPipeline.Result, Runnable> worker = new SwingWorker<NarrationPipeline.Result, Runnable>() {
+            private int slideCount;
+            private int narratedCount;
+
+            @Override
+            protected NarrationPipeline.Result doInBackground() throws Exception {
+                Job job = Job.start(deck, "narrate");
+                currentJob = job;
+                NarrationPipeline pipeline = new NarrationPipeline(job, deck, outputDir.toPath(), maxTokens, selectedModel,
+                        new NarrationPipeline.Listener() {
+                            @Override
+                            public void onSlideCount(int count) {
+                                publish(() -> {
+                                    slideCount = count;
+                                    createSlideTabs(count);
+                                    progressBar.setIndeterminate(false);
+                                    progressBar.setMaximum(count);
+                                    progressBar.setValue(0);
+                                });
+                            }
+
+                            @Override
+                            public void onExpanded(int index, String expandedContent) {
+                                publish(() -> {
+                                    setSlideText(index, expandedContent);
+                                    tabbedPane.setTitleAt(index, "Slide " + (index + 1) + " (narrating...)");
+                                });
+                            }
+
+                            @Override
+                            public void onNarrated(int index, AudioBatch.Status status, Exception error) {
+                                publish(() -> {
+                                    String suffix = status == AudioBatch.Status.FAILED ? " (audio failed)" : " (audio)";
+                                    tabbedPane.setTitleAt(index, "Slide " + (index + 1) + suffix);
+                                    progressBar.setValue(++narratedCount);
+                                    statusLabel.setText("Expanding and narrating: " + narratedCount + " of " + slideCount + " slides done");
+                                });
+                            }
+                        });
+                return job.run(() -> {
+                    NarrationPipeline.Result result = pipeline.run();
+                    if (result.failed > 0) {
+                        job.markFailed(result.failed + " slides failed");
+                    }
+                    assembleDeckTrack(outputDir, result.expandedContents.size(), result.failed, deckName);
+                    return result;
+                });
+            }
+
+            @Override
+            protected void process(List<Runnable> updates) {
+                for (Runnable update : updates) {
+                    update.run();
+                }
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    NarrationPipeline.Result result = get();
+                    displayedDeck = deck;
+                    displayedSlideIds = result.slideIds;
+                    statusLabel.setText("Expanded " + result.expandedContents.size() + " slides; audio: " + result.narrated + " generated, "
+                            + result.skipped + " already up to date, " + result.failed + " failed. Saved to: " + outputDir);
+                } catch (Exception e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    if (isCancellation(e)) {
+                        statusLabel.setText("Cancelled after " + narratedCount + " of " + slideCount
+                                + " slides. Running again continues where this run stopped.");
+                        return;
+                    }
+                    LOGGER.severe("Error in PowerPointExpander: " + cause.getMessage());
+                    statusLabel.setText("Error: " + cause.getMessage());
+                } finally {
+                    progressBar.setIndeterminate(true);
+                    expandAndNarrateButton.setEnabled(true);
+                    setAudioBusy(false);
+                    setJobRunning(false);
+                }
+            }
+        };
+
+        statusLabel.setText("Parsing PowerPoint...");
+        expandAndNarrateButton.setEnabled(false);
+        setAudioBusy(true);
+        setJobRunning(true);
+        worker.execute();
     }
 
     private void generateAudioForCurrentSlide() {
@@ -256,34 +647,206 @@ public class PowerPointExpander {
             return;
         }
 
-        try {
-            statusLabel.setText("Generating speech with ElevenLabs...");
-            String pptName = selectedFile.getName().replaceFirst("[.][^.]+$", "");
-            String outputDir = selectedFile.getParent() + File.separator + pptName + "_audio";
-            new File(outputDir).mkdirs();
+        saveManualEdits();
+        File outputDir = getAudioDirectory();
+        outputDir.mkdirs();
+        String slideContent = slideTextAreas[selectedIndex].getText();
+        String outputPath = AudioBatch.slideAudioPath(outputDir.toPath(), selectedIndex).toString();
 
-            String slideContent = slideTextAreas[selectedIndex].getText();
-            String outputPath = outputDir + File.separator + "slide" + (selectedIndex + 1) + ".mp3";
-
-            try {
+        // Run the request off the event thread so the window stays responsive
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
                 ElevenLabsTTS.generateSpeech(slideContent.trim(), outputPath);
-                statusLabel.setText("Generated audio for slide " + (selectedIndex + 1));
-                JOptionPane.showMessageDialog(frame, "Audio generated successfully for slide " + (selectedIndex + 1) + ".\nSaved to: " + outputPath);
-            } catch (IOException e) {
-                LOGGER.severe("Error generating audio for slide " + (selectedIndex + 1) + ": " + e.getMessage());
-                statusLabel.setText("Error generating audio for slide " + (selectedIndex + 1) + ": " + e.getMessage());
-                JOptionPane.showMessageDialog(frame, "Error generating audio for slide " + (selectedIndex + 1) + ": " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                return null;
             }
-        } catch (Exception e) {
-            LOGGER.severe("Error in audio generation process: " + e.getMessage());
-            e.printStackTrace();
-            statusLabel.setText("Error in audio generation process: " + e.getMessage());
-            JOptionPane.showMessageDialog(frame, "Error in audio generation process: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    statusLabel.setText("Generated audio for slide " + (selectedIndex + 1));
+                    JOptionPane.showMessageDialog(frame, "Audio generated successfully for slide " + (selectedIndex + 1) + ".\nSaved to: " + outputPath);
+                } catch (Exception e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    LOGGER.severe("Error generating audio for slide " + (selectedIndex + 1) + ": " + cause.getMessage());
+                    statusLabel.setText("Error generating audio for slide " + (selectedIndex + 1) + ": " + cause.getMessage());
+                    JOptionPane.showMessageDialog(frame, "Error generating audio for slide " + (selectedIndex + 1) + ": " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                } finally {
+                    setAudioBusy(false);
+                }
+            }
+        };
+
+        statusLabel.setText("Generating speech with ElevenLabs...");
+        setAudioBusy(true);
+        worker.execute();
+    }
+
+    private void generateAudioForAllSlides() {
+        if (slideTextAreas == null || slideTextAreas.length == 0) {
+            return;
+        }
+
+        saveManualEdits();
+        File outputDir = getAudioDirectory();
+        outputDir.mkdirs();
+        List<String> slideTexts = new ArrayList<>();
+        for (JTextArea textArea : slideTextAreas) {
+            slideTexts.add(textArea.getText());
+        }
+        int slideCount = slideTexts.size();
+        String deckName = getDeckName();
+
+        // Each published pair is {slide index, AudioBatch.Status ordinal or -1 when started}
+        SwingWorker<AudioBatch.Result, int[]> worker = new SwingWorker<AudioBatch.Result, int[]>() {
+            private int finished;
+
+            @Override
+            protected AudioBatch.Result doInBackground() throws Exception {
+                AudioBatch.Result result = AudioBatch.generate(slideTexts, outputDir.toPath(), new AudioBatch.Listener() {
+                    @Override
+                    public void onStarted(int index) {
+                        publish(new int[] {index, -1});
+                    }
+
+                    @Override
+                    public void onFinished(int index, AudioBatch.Status status, Exception error) {
+                        publish(new int[] {index, status.ordinal()});
+                    }
+                });
+                assembleDeckTrack(outputDir, slideCount, result.failed, deckName);
+                return result;
+            }
+
+            @Override
+            protected void process(List<int[]> updates) {
+                for (int[] update : updates) {
+                    int index = update[0];
+                    if (update[1] < 0) {
+                        tabbedPane.setTitleAt(index, "Slide " + (index + 1) + " (generating...)");
+                        continue;
+                    }
+                    AudioBatch.Status status = AudioBatch.Status.values()[update[1]];
+                    String title = "Slide " + (index + 1);
+                    if (status == AudioBatch.Status.FAILED) {
+                        title += " (audio failed)";
+                    } else if (!slideTexts.get(index).trim().isEmpty()) {
+                        title += " (audio)";
+                    }
+                    tabbedPane.setTitleAt(index, title);
+                    finished++;
+                }
+                progressBar.setValue(finished);
+                statusLabel.setText("Generating audio: " + finished + " of " + slideCount + " slides done");
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    AudioBatch.Result result = get();
+                    statusLabel.setText("Audio finished: " + result.generated + " generated, " + result.skipped + " already up to date, "
+                            + result.failed + " failed. Saved to: " + outputDir);
+                } catch (Exception e) {
+                    LOGGER.severe("Error in audio generation process: " + e.getMessage());
+                    statusLabel.setText("Error in audio generation process: " + e.getMessage());
+                } finally {
+                    progressBar.setIndeterminate(true);
+                    setAudioBusy(false);
+                }
+            }
+        };
+
+        progressBar.setIndeterminate(false);
+        progressBar.setMinimum(0);
+        progressBar.setMaximum(slideCount);
+        progressBar.setValue(0);
+        statusLabel.setText("Generating audio for " + slideCount + " slides...");
+        setAudioBusy(true);
+        worker.execute();
+    }
+
+    // Stores the text of tabs changed by hand in the deck manifest, so the next expansion keeps it.
+    private void saveManualEdits() {
+        if (displayedDeck == null || displayedSlideIds == null || slideTextAreas == null
+                || slideTextAreas.length != displayedSlideIds.size()) {
+            return;
+        }
+        DeckManifest manifest = DeckManifest.load(displayedDeck);
+        boolean changed = false;
+        for (int i = 0; i < slideTextAreas.length; i++) {
+            if (Boolean.TRUE.equals(slideTextAreas[i].getClientProperty(EDITED))) {
+                manifest.recordEdit(displayedSlideIds.get(i), slideTextAreas[i].getText());
+                slideTextAreas[i].putClientProperty(EDITED, Boolean.FALSE);
+                changed = true;
+            }
+        }
+        if (changed) {
+            manifest.save();
+        }
+    }
+
+    private File getAudioDirectory() {
+        return new File(selectedFile.getParent() + File.separator + getDeckName() + "_audio");
+    }
+
+    private String getDeckName() {
+        return selectedFile.getName().replaceFirst("[.][^.]+$", "");
+    }
+
+    // Joins the slide files into <deck>.mp3 with one chapter per slide, unless some slides failed and the
+    // track would be incomplete.
+    private void assembleDeckTrack(File outputDir, int slideCount, int failed, String deckName) throws IOException {
+        if (!DeckTrack.isEnabled()) {
+            return;
+        }
+        if (failed > 0) {
+            LOGGER.warning("Not assembling the narration track because " + failed + " slides failed");
+            return;
+        }
+        DeckTrack.assemble(outputDir.toPath(), slideCount, deckName);
+    }
+
+    private void cancelCurrentJob() {
+        Job job = currentJob;
+        if (job != null) {
+            cancelButton.setEnabled(false);
+            statusLabel.setText("Cancelling...");
+            job.cancel();
         }
     }
 
+    private void setJobRunning(boolean running) {
+        if (!running) {
+            currentJob = null;
+        }
+        cancelButton.setEnabled(running);
+    }
+
+    // A run stopped with the Cancel button usually fails with a CancellationException somewhere in its cause chain.
+    private boolean isCancellation(Throwable e) {
+        Job job = currentJob;
+        if (job != null && job.isCancelled()) {
+            return true;
+        }
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CancellationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setAudioBusy(boolean busy) {
+        audioBusy = busy;
+        progressBar.setVisible(busy);
+        expandButton.setEnabled(!busy && selectedFile != null);
+        updateGenerateAudioButton();
+    }
+
     private void updateGenerateAudioButton() {
-        generateAudioButton.setEnabled(tabbedPane.getTabCount() > 0);
+        generateAudioButton.setEnabled(!audioBusy && tabbedPane.getTabCount() > 0);
+        generateAllAudioButton.setEnabled(!audioBusy && tabbedPane.getTabCount() > 0);
     }
 
     private void showSystemPromptDialog() {
@@ -330,6 +893,16 @@ public class PowerPointExpander {
         Logger.getLogger("").setLevel(Level.INFO);
         Logger.getLogger("").getHandlers()[0].setLevel(Level.INFO);
 
+        if (args.length > 0 && args[0].equals("batch")) {
+            System.exit(BatchCli.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("worker")) {
+            System.exit(QueueWorker.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            System.exit(ExpansionServer.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
         SwingUtilities.invokeLater(() -> {
             new PowerPointExpander();
         });
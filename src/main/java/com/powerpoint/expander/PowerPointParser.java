@@ -5,15 +5,25 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 import com.cloudinary.Cloudinary;
-import com.cloudinary.utils.ObjectUtils;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.json.JSONObject;
 
 public class PowerPointParser {
     private static final Logger LOGGER = Logger.getLogger(PowerPointParser.class.getName());
     private static final Cloudinary cloudinary;
+    private static final int DEFAULT_STREAMING_THRESHOLD_MB = 100;
+    private static final Metrics.Timer PARSE_TIMER = Metrics.timer("parser.parseSlides");
+    private static final Metrics.Timer UPLOAD_TIMER = Metrics.timer("cloudinary.upload");
 
     static {
         String cloudinaryUrl = Settings.get("cloudinary.url");
@@ -25,8 +35,45 @@ public class PowerPointParser {
         }
     }
 
+    // Receives slides as soon as each one has been parsed, so downstream work can start before the
+    // whole deck has been read.
+    public interface SlideListener {
+        default void onStart(int slideCount) {
+        }
+
+        void onSlide(int index, SlideContent slide);
+    }
+
     public static List<SlideContent> parseSlides(File file) throws IOException {
         List<SlideContent> slideContents = new ArrayList<>();
+        parseSlides(file, (index, slide) -> slideContents.add(slide));
+        return slideContents;
+    }
+
+    public static void parseSlides(File file, SlideListener listener) throws IOException {
+        parseSlides(file, listener, true);
+    }
+
+    // Reads text and tables only; pictures are hashed but never uploaded or embedded. Meant for quick
+    // previews such as the token estimate shown before expanding.
+    public static List<SlideContent> parseSlideText(File file) throws IOException {
+        List<SlideContent> slideContents = new ArrayList<>();
+        parseSlides(file, (index, slide) -> slideContents.add(slide), false);
+        return slideContents;
+    }
+
+    private static void parseSlides(File file, SlideListener listener, boolean resolveImages) throws IOException {
+        Metrics.Sample sample = PARSE_TIMER.start();
+        try {
+            Metrics.counter("parser.bytes.read").add(file.length());
+            readSlides(file, listener, resolveImages);
+        } finally {
+            sample.close();
+        }
+    }
+
+    private static void readSlides(File file, SlideListener listener, boolean resolveImages) throws IOException {
+        Map<String, String> imageUrlsByHash = new HashMap<>();
         LOGGER.info("Starting to parse PowerPoint file: " + file.getName());
         
         // Validate file extension
@@ -39,20 +86,31 @@ public class PowerPointParser {
             throw new IOException("File does not exist or cannot be read: " + file.getPath());
         }
 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            // Validate file size
-            if (file.length() == 0) {
-                throw new IOException("File is empty: " + file.getPath());
-            }
+        // Validate file size
+        if (file.length() == 0) {
+            throw new IOException("File is empty: " + file.getPath());
+        }
 
+        if (useStreamingReader(file)) {
+            LOGGER.info("Using low-memory streaming reader for " + file.getName());
+            StreamingSlideReader.read(file, listener, imageUrlsByHash, resolveImages);
+            LOGGER.info("Finished parsing PowerPoint file: " + file.getName());
+            return;
+        }
+
+        try (FileInputStream fis = new FileInputStream(file)) {
             try (XMLSlideShow ppt = new XMLSlideShow(fis)) {
                 int slideCount = ppt.getSlides().size();
                 LOGGER.info("PowerPoint file contains " + slideCount + " slides");
+                listener.onStart(slideCount);
                 
                 for (int i = 0; i < slideCount; i++) {
                     XSLFSlide slide = ppt.getSlides().get(i);
                     LOGGER.info("Parsing slide " + (i + 1));
+                    PipelineEvents.SlideParse event = new PipelineEvents.SlideParse();
+                    event.begin();
                     SlideContent content = new SlideContent();
+                    content.setSlideId(String.valueOf(ppt.getCTPresentation().getSldIdLst().getSldIdArray(i).getId()));
                     StringBuilder textContent = new StringBuilder();
                     
                     for (XSLFShape shape : slide.getShapes()) {
@@ -63,17 +121,23 @@ public class PowerPointParser {
                         } else if (shape instanceof XSLFTable) {
                             LOGGER.info("Parsing table in slide " + (i + 1));
                             XSLFTable table = (XSLFTable) shape;
-                            content.setTable(parseTable(table));
+                            content.setTable(parseTable(table, i + 1));
                         } else if (shape instanceof XSLFPictureShape) {
                             LOGGER.info("Parsing image in slide " + (i + 1));
                             XSLFPictureShape picture = (XSLFPictureShape) shape;
-                            content.setImageUrl(uploadAndGetImageUrl(picture));
+                            byte[] pictureData = picture.getPictureData().getData();
+                            String imageHash = ContentHash.sha256(pictureData);
+                            content.setImageHash(imageHash);
+                            if (resolveImages) {
+                                content.setImageUrl(getImageUrl(imageHash, () -> pictureData, imageUrlsByHash, i + 1));
+                            }
                         }
                     }
                     
                     content.setText(textContent.toString().trim());
-                    slideContents.add(content);
                     LOGGER.info("Finished parsing slide " + (i + 1));
+                    commitSlideParse(event, i + 1, "poi", content);
+                    listener.onSlide(i, content);
                 }
             } catch (org.apache.poi.ooxml.POIXMLException e) {
                 LOGGER.severe("Error parsing PowerPoint file: " + e.getMessage());
@@ -87,10 +151,11 @@ public class PowerPointParser {
         }
         
         LOGGER.info("Finished parsing PowerPoint file: " + file.getName());
-        return slideContents;
     }
 
-    private static String parseTable(XSLFTable table) {
+    private static String parseTable(XSLFTable table, int slideNumber) {
+        PipelineEvents.TableParse event = new PipelineEvents.TableParse();
+        event.begin();
         StringBuilder tableContent = new StringBuilder();
         int rowCount = table.getNumberOfRows();
         LOGGER.info("Parsing table with " + rowCount + " rows");
@@ -108,21 +173,145 @@ public class PowerPointParser {
             tableContent.append("\n");
         }
         LOGGER.info("Finished parsing table");
-        return tableContent.toString().trim();
+        String text = tableContent.toString().trim();
+        commitTableParse(event, slideNumber, rowCount, text);
+        return text;
+    }
+
+    static void commitSlideParse(PipelineEvents.SlideParse event, int slideNumber, String parser, SlideContent content) {
+        if (event.shouldCommit()) {
+            event.slideNumber = slideNumber;
+            event.parser = parser;
+            event.textLength = content.getText() != null ? content.getText().length() : 0;
+            event.hasTable = content.getTable() != null;
+            event.hasImage = content.getImageHash() != null;
+            event.commit();
+        }
+    }
+
+    static void commitTableParse(PipelineEvents.TableParse event, int slideNumber, int rows, String text) {
+        if (event.shouldCommit()) {
+            event.slideNumber = slideNumber;
+            event.rows = rows;
+            event.textLength = text.length();
+            event.commit();
+        }
     }
 
-    private static String uploadAndGetImageUrl(XSLFPictureShape picture) throws IOException {
+    // "poi" always loads the whole package with XMLSlideShow, "streaming" always uses StreamingSlideReader,
+    // and "auto" switches to the streaming reader for files above the configured size.
+    private static boolean useStreamingReader(File file) {
+        String backend = Settings.get("parser.backend").trim();
+        if (backend.equalsIgnoreCase("streaming")) {
+            return true;
+        }
+        if (backend.equalsIgnoreCase("poi")) {
+            return false;
+        }
+        long thresholdBytes = Settings.getInt("parser.streaming.threshold.mb", DEFAULT_STREAMING_THRESHOLD_MB) * 1024L * 1024L;
+        return file.length() > thresholdBytes;
+    }
+
+    interface PictureSource {
+        byte[] getData() throws IOException;
+    }
+
+    // Identical pictures are uploaded once per deck, and not at all if the image index already has a URL.
+    // The picture bytes are only requested when an upload is actually needed.
+    static String getImageUrl(String imageHash, PictureSource pictureSource, Map<String, String> imageUrlsByHash, int slideNumber)
+            throws IOException {
+        if (imageUrlsByHash.containsKey(imageHash)) {
+            LOGGER.info("Reusing image already processed for this presentation");
+            return imageUrlsByHash.get(imageHash);
+        }
+        String imageUrl;
+        if (useInlineImages()) {
+            byte[] pictureData = ImagePreprocessor.toVisionFormat(ImagePreprocessor.process(pictureSource.getData()));
+            if (pictureData == null) {
+                LOGGER.warning("Not describing the picture on slide " + slideNumber
+                        + ": its format (such as EMF or WMF) cannot be sent inline or converted");
+            }
+            imageUrl = pictureData == null ? null : toDataUrl(pictureData);
+        } else {
+            imageUrl = ImageIndex.getUrl(imageHash);
+            if (imageUrl != null) {
+                LOGGER.info("Reusing previously uploaded image: " + imageUrl);
+            } else {
+                imageUrl = uploadAndGetImageUrl(ImagePreprocessor.process(pictureSource.getData()), slideNumber);
+                ImageIndex.putUrl(imageHash, imageUrl);
+            }
+        }
+        imageUrlsByHash.put(imageHash, imageUrl);
+        return imageUrl;
+    }
+
+    // "inline" sends pictures to the vision model as base64 data URLs, "cloudinary" uploads them first,
+    // and "auto" uploads only when a Cloudinary URL is configured.
+    private static boolean useInlineImages() {
+        String transport = Settings.get("image.transport").trim();
+        if (transport.equalsIgnoreCase("inline")) {
+            return true;
+        }
+        if (transport.equalsIgnoreCase("cloudinary")) {
+            return false;
+        }
+        return cloudinary == null;
+    }
+
+    private static String toDataUrl(byte[] pictureData) {
+        String mimeType = ImagePreprocessor.getMimeType(pictureData);
+        LOGGER.info("Embedding image inline as " + mimeType + ", size: " + pictureData.length + " bytes");
+        return "data:" + mimeType + ";base64," + Base64.getEncoder().encodeToString(pictureData);
+    }
+
+    // Uploads through the shared HTTP client instead of the Cloudinary SDK's own Apache client, signing the
+    // request with the configured credentials.
+    private static String uploadAndGetImageUrl(byte[] pictureData, int slideNumber) throws IOException {
         if (cloudinary == null) {
             throw new IllegalStateException("Cloudinary URL is not configured. Please set it in Settings.");
         }
+        PipelineEvents.ImageUpload event = new PipelineEvents.ImageUpload();
+        event.begin();
+        Metrics.Sample sample = UPLOAD_TIMER.start();
+        int httpStatus = 0;
+        try {
+            Metrics.counter("cloudinary.bytes.uploaded").add(pictureData.length);
+            LOGGER.info("Uploading image to Cloudinary, size: " + pictureData.length + " bytes");
+            Map<String, Object> params = new HashMap<>();
+            params.put("timestamp", String.valueOf(System.currentTimeMillis() / 1000L));
+            cloudinary.signRequest(params, new HashMap<>());
 
-        byte[] pictureData = picture.getPictureData().getData();
-        LOGGER.info("Uploading image to Cloudinary, size: " + pictureData.length + " bytes");
-        
-        @SuppressWarnings("unchecked")
-        Map<String, Object> uploadResult = (Map<String, Object>) cloudinary.uploader().upload(pictureData, ObjectUtils.emptyMap());
-        String imageUrl = (String) uploadResult.get("secure_url");
-        LOGGER.info("Uploaded image to Cloudinary: " + imageUrl);
-        return imageUrl;
+            MultipartBody.Builder body = new MultipartBody.Builder().setType(MultipartBody.FORM);
+            for (Map.Entry<String, Object> param : params.entrySet()) {
+                body.addFormDataPart(param.getKey(), String.valueOf(param.getValue()));
+            }
+            body.addFormDataPart("file", "image", RequestBody.create(pictureData, MediaType.parse("application/octet-stream")));
+
+            Request request = new Request.Builder()
+                    .url(cloudinary.cloudinaryApiUrl("upload", new HashMap<>()))
+                    .post(body.build())
+                    .build();
+            try (Response response = HttpTransport.okHttp().newCall(request).execute()) {
+                httpStatus = response.code();
+                String responseBody = response.body() != null ? response.body().string() : "";
+                if (!response.isSuccessful()) {
+                    throw new IOException("Cloudinary upload failed: " + response.code() + " " + responseBody);
+                }
+                String imageUrl = new JSONObject(responseBody).getString("secure_url");
+                LOGGER.info("Uploaded image to Cloudinary: " + imageUrl);
+                return imageUrl;
+            }
+        } catch (IOException | RuntimeException e) {
+            event.error = e.getMessage();
+            throw e;
+        } finally {
+            sample.close();
+            if (event.shouldCommit()) {
+                event.slideNumber = slideNumber;
+                event.bytes = pictureData.length;
+                event.httpStatus = httpStatus;
+                event.commit();
+            }
+        }
     }
 }
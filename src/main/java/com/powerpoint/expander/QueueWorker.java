@@ -0,0 +1,593 @@
+package com.powerpoint.expander;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Distributed mode: "java -jar PowerPointExpander.jar worker [options] <queue directory>". Any number of worker
+// processes, on one machine or on several sharing the directory over NFS or SMB, split the decks dropped into the
+// queue between them:
+//
+//   inbox/             decks waiting to be processed
+//   claimed/<node>/    decks a worker is processing. Moving a deck here is the claim: a rename succeeds only once
+//   leases/<node>      each worker's heartbeat, rewritten every worker.heartbeat.seconds
+//   done/              processed decks, with <deck>.json and <deck>_audio next to them
+//   failed/            decks that could not be processed, with <deck>.error.txt
+//
+// A worker whose lease has not changed for worker.lease.expiry.seconds is taken for dead, and the first worker to
+// notice moves its claimed decks back to the inbox. Staleness is measured on the observer's own clock, so the
+// machines' clocks do not need to agree.
+public class QueueWorker {
+    private static final Logger LOGGER = Logger.getLogger(QueueWorker.class.getName());
+    private static final int DEFAULT_MAX_TOKENS = 2000;
+    private static final String DEFAULT_MODEL = "gpt-4o-mini";
+    private static final Pattern NODE_NAME = Pattern.compile("[A-Za-z0-9_.-]{1,100}");
+
+    // Turns a claimed deck into its results in the given directory; replaced in tests
+    interface DeckProcessor {
+        BatchCli.DeckResult process(Path deck, Path targetDir);
+    }
+
+    // A lease as last seen by this worker, and when it was first seen with that content
+    private static class Observation {
+        final String stamp;
+        final long since;
+
+        Observation(String stamp, long since) {
+            this.stamp = stamp;
+            this.since = since;
+        }
+    }
+
+    private final PrintStream out = System.out;
+    private Path queueDir;
+    private String node;
+    private int workers = Math.max(1, Settings.getInt("batch.workers", 2));
+    private int maxTokens = DEFAULT_MAX_TOKENS;
+    private String model = DEFAULT_MODEL;
+    private boolean chunked = Settings.getBoolean("expansion.chunked", false);
+    private boolean audio = true;
+    private boolean exitWhenEmpty;
+
+    private final long heartbeatMillis = Math.max(1, Settings.getInt("worker.heartbeat.seconds", 10)) * 1000L;
+    private final long expiryNanos = Math.max(1, Settings.getInt("worker.lease.expiry.seconds", 60)) * 1_000_000_000L;
+    private final long pollMillis = Math.max(1, Settings.getInt("worker.poll.seconds", 5)) * 1000L;
+    private final int maxRequeues = Math.max(0, Settings.getInt("worker.max.requeues", 3));
+    private DeckProcessor processor = (deck, targetDir) -> BatchCli.processDeck(deck, targetDir, model, maxTokens, chunked, audio);
+
+    private Path inbox;
+    private Path claimedRoot;
+    private Path claimedDir;
+    private Path leasesDir;
+    private Path doneDir;
+    private Path failedDir;
+    private Path requeuesDir;
+
+    // Decks this worker is processing, by claimed path
+    private final Map<Path, Job> active = new ConcurrentHashMap<>();
+    // Only touched by the heartbeat thread
+    private final Map<String, Observation> observed = new HashMap<>();
+    private long beat;
+    private volatile boolean stopping;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger lost = new AtomicInteger();
+
+    public static int run(String[] args) {
+        return run(args, null);
+    }
+
+    static int run(String[] args, DeckProcessor processor) {
+        QueueWorker worker = new QueueWorker();
+        if (processor != null) {
+            worker.processor = processor;
+        }
+        try {
+            if (!worker.parseArguments(args)) {
+                return BatchCli.EXIT_OK;
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            printUsage(System.err);
+            return BatchCli.EXIT_USAGE;
+        }
+        return worker.execute();
+    }
+
+    // Returns false when there is nothing to run, as after --help.
+    private boolean parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--workers":
+                    workers = parsePositive(arg, value(args, ++i, arg));
+                    break;
+                case "--max-tokens":
+                    maxTokens = parsePositive(arg, value(args, ++i, arg));
+                    break;
+                case "--model":
+                    model = value(args, ++i, arg);
+                    break;
+                case "--node":
+                    node = value(args, ++i, arg);
+                    if (!NODE_NAME.matcher(node).matches()) {
+                        throw new IllegalArgumentException("--node may only contain letters, digits, '.', '_' and '-': " + node);
+                    }
+                    break;
+                case "--chunked":
+                    chunked = true;
+                    break;
+                case "--no-audio":
+                    audio = false;
+                    break;
+                case "--exit-when-empty":
+                    exitWhenEmpty = true;
+                    break;
+                case "--help":
+                case "-h":
+                    printUsage(out);
+                    return false;
+                default:
+                    if (arg.startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                    }
+                    if (queueDir != null) {
+                        throw new IllegalArgumentException("Only one queue directory can be given");
+                    }
+                    queueDir = Paths.get(arg).toAbsolutePath().normalize();
+            }
+        }
+        if (queueDir == null) {
+            throw new IllegalArgumentException("No queue directory given");
+        }
+        if (node == null) {
+            node = defaultNodeName();
+        }
+        return true;
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[index];
+    }
+
+    private static int parsePositive(String option, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(option + " must be a positive number: " + value);
+    }
+
+    private static String defaultNodeName() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName().replaceAll("[^A-Za-z0-9_.-]", "_");
+        } catch (IOException e) {
+            host = "node";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    private static void printUsage(PrintStream stream) {
+        stream.println("Usage: java -jar PowerPointExpander.jar worker [options] <queue directory>");
+        stream.println("  --workers N       decks processed at the same time by this process (default: batch.workers setting, 2)");
+        stream.println("  --node NAME       name of this worker in the queue (default: <host>-<pid>)");
+        stream.println("  --model NAME      OpenAI model (default: " + DEFAULT_MODEL + ")");
+        stream.println("  --max-tokens N    completion token limit (default: " + DEFAULT_MAX_TOKENS + ")");
+        stream.println("  --chunked         expand each deck in parallel chunks");
+        stream.println("  --no-audio        only write the expanded text");
+        stream.println("  --exit-when-empty stop once the inbox is empty and no deck is claimed, instead of waiting for more");
+        stream.println("Decks are taken from <queue>/inbox; results are written to <queue>/done next to each deck.");
+    }
+
+    private int execute() {
+        if (Settings.get("openai.api.key").isEmpty()) {
+            System.err.println("Error: OpenAI API key is not set in " + Settings.getAppDir().resolve("config.properties"));
+            return BatchCli.EXIT_USAGE;
+        }
+        if (audio && (Settings.get("elevenlabs.api.key").isEmpty() || Settings.get("elevenlabs.voice.id").isEmpty())) {
+            System.err.println("Error: ElevenLabs API key or voice ID is not set; configure them or pass --no-audio");
+            return BatchCli.EXIT_USAGE;
+        }
+        inbox = queueDir.resolve("inbox");
+        claimedRoot = queueDir.resolve("claimed");
+        claimedDir = claimedRoot.resolve(node);
+        leasesDir = queueDir.resolve("leases");
+        doneDir = queueDir.resolve("done");
+        failedDir = queueDir.resolve("failed");
+        requeuesDir = queueDir.resolve("requeues");
+        try {
+            for (Path dir : List.of(inbox, claimedRoot, leasesDir, doneDir, failedDir, requeuesDir)) {
+                Files.createDirectories(dir);
+            }
+            writeLease();
+            // Decks left behind by an earlier process with the same node name
+            for (Path deck : listDecks(claimedDir)) {
+                requeue(deck, "worker " + node + " restarted", true);
+            }
+        } catch (IOException e) {
+            System.err.println("Error: cannot use queue directory " + queueDir + ": " + e.getMessage());
+            return BatchCli.EXIT_USAGE;
+        }
+
+        out.println("Worker " + node + " processing " + inbox + " with " + workers + " workers (model " + model + ", max tokens " + maxTokens
+                + (chunked ? ", chunked" : "") + (audio ? "" : ", no audio") + ")");
+        long promptTokensBefore = OpenAIExpander.getPromptTokens();
+        long completionTokensBefore = OpenAIExpander.getCompletionTokens();
+        long started = System.nanoTime();
+
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "worker-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+
+        CountDownLatch finished = new CountDownLatch(workers);
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    workLoop();
+                } finally {
+                    finished.countDown();
+                }
+            }, "worker-deck");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        // On Ctrl+C or kill, give the claimed decks back instead of leaving them until the lease expires
+        Thread shutdownHook = new Thread(() -> {
+            stopping = true;
+            active.values().forEach(Job::cancel);
+            try {
+                finished.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            releaseLease();
+        }, "worker-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return BatchCli.EXIT_FAILURES;
+        }
+        heartbeat.shutdownNow();
+        if (stopping) {
+            return BatchCli.EXIT_FAILURES;
+        }
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        releaseLease();
+
+        double minutes = (System.nanoTime() - started) / 60e9;
+        out.println();
+        out.printf(Locale.ROOT, "Worker %s: %d decks processed, %d failed, %d lost to other workers in %.1f min%n",
+                node, processed.get(), failed.get(), lost.get(), minutes);
+        out.printf(Locale.ROOT, "Tokens:     %d prompt, %d completion%n",
+                OpenAIExpander.getPromptTokens() - promptTokensBefore, OpenAIExpander.getCompletionTokens() - completionTokensBefore);
+        out.println("HTTP:       " + HttpTransport.getStats());
+        return failed.get() > 0 ? BatchCli.EXIT_FAILURES : BatchCli.EXIT_OK;
+    }
+
+    private void workLoop() {
+        while (!stopping) {
+            Path deck = claimNext();
+            if (deck != null) {
+                process(deck);
+                continue;
+            }
+            if (exitWhenEmpty && isDrained()) {
+                return;
+            }
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Moves the first deck of the inbox into this worker's claimed directory. Several workers may try the same
+    // deck; the rename succeeds for exactly one of them and the others move on to the next deck.
+    private Path claimNext() {
+        try {
+            Files.createDirectories(claimedDir);
+            for (Path deck : listDecks(inbox)) {
+                Path claimed = claimedDir.resolve(deck.getFileName());
+                try {
+                    Files.move(deck, claimed, StandardCopyOption.ATOMIC_MOVE);
+                    return claimed;
+                } catch (NoSuchFileException e) {
+                    // Another worker was faster
+                } catch (IOException e) {
+                    LOGGER.fine("Could not claim " + deck + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Could not read queue " + inbox + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    // True when nothing is waiting and no worker holds a deck that might still come back to the inbox.
+    private boolean isDrained() {
+        try {
+            if (!listDecks(inbox).isEmpty()) {
+                return false;
+            }
+            try (Stream<Path> nodes = Files.list(claimedRoot)) {
+                for (Path dir : nodes.filter(Files::isDirectory).collect(Collectors.toList())) {
+                    if (!listDecks(dir).isEmpty()) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void process(Path claimed) {
+        String fileName = claimed.getFileName().toString();
+        long started = System.nanoTime();
+        Job job;
+        try {
+            job = Job.start(claimed.toFile(), "worker");
+        } catch (IOException e) {
+            LOGGER.warning("Could not start job for " + claimed + ": " + e.getMessage());
+            requeue(claimed, e.getMessage(), false);
+            return;
+        }
+        active.put(claimed, job);
+        BatchCli.DeckResult result;
+        try {
+            result = job.run(() -> {
+                BatchCli.DeckResult deckResult = processor.process(claimed, doneDir);
+                if (deckResult.failed) {
+                    job.markFailed(deckResult.error);
+                }
+                return deckResult;
+            });
+        } catch (Exception e) {
+            result = new BatchCli.DeckResult();
+            result.failed = true;
+            result.error = String.valueOf(e.getMessage());
+        }
+        // The heartbeat removes the deck itself when it finds the claim gone
+        boolean stillClaimed = active.remove(claimed, job);
+        Job.forget(claimed.toFile());
+        DeckManifest.forget(claimed.toFile());
+
+        if (!stillClaimed) {
+            lost.incrementAndGet();
+            LOGGER.warning("Lost the claim on " + fileName + "; another worker took it over");
+            return;
+        }
+        if (job.isCancelled()) {
+            requeue(claimed, "worker " + node + " stopped", false);
+            return;
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        try {
+            if (result.failed) {
+                Files.move(claimed, failedDir.resolve(fileName), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                Files.writeString(failedDir.resolve(fileName + ".error.txt"), String.valueOf(result.error));
+                failed.incrementAndGet();
+            } else {
+                Files.move(claimed, doneDir.resolve(fileName), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                processed.incrementAndGet();
+            }
+            clearRequeues(fileName);
+        } catch (NoSuchFileException e) {
+            lost.incrementAndGet();
+            LOGGER.warning("Lost the claim on " + fileName + "; another worker took it over");
+            return;
+        } catch (IOException e) {
+            LOGGER.severe("Could not move " + claimed + " out of the claimed directory: " + e.getMessage());
+        }
+        synchronized (out) {
+            out.printf(Locale.ROOT, "[%s] %s: %d slides, %s in %.1f s%n", node, fileName, result.slides,
+                    result.failed ? "FAILED (" + result.error + ")" : "ok", seconds);
+        }
+    }
+
+    private void heartbeat() {
+        if (stopping) {
+            return;
+        }
+        try {
+            writeLease();
+            // A deck that vanished from our claimed directory was requeued by a worker that took us for dead
+            for (Map.Entry<Path, Job> entry : active.entrySet()) {
+                if (!Files.exists(entry.getKey()) && active.remove(entry.getKey(), entry.getValue())) {
+                    entry.getValue().cancel();
+                }
+            }
+            reapExpired();
+        } catch (Exception e) {
+            LOGGER.warning("Heartbeat failed: " + e.getMessage());
+        }
+    }
+
+    // Rewritten as a whole and renamed into place, so other workers never read half a lease.
+    private void writeLease() throws IOException {
+        JSONArray decks = new JSONArray();
+        active.keySet().forEach(path -> decks.put(path.getFileName().toString()));
+        JSONObject lease = new JSONObject()
+                .put("node", node)
+                .put("pid", ProcessHandle.current().pid())
+                .put("beat", ++beat)
+                .put("time", System.currentTimeMillis())
+                .put("decks", decks);
+        Path temp = leasesDir.resolve("." + node + ".tmp");
+        Files.writeString(temp, lease.toString());
+        Files.move(temp, leasesDir.resolve(node), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void releaseLease() {
+        try {
+            Files.deleteIfExists(leasesDir.resolve(node));
+            Files.deleteIfExists(claimedDir);
+        } catch (DirectoryNotEmptyException e) {
+            LOGGER.warning("Decks are still claimed by " + node + "; other workers will requeue them once its lease expires");
+        } catch (IOException e) {
+            LOGGER.warning("Could not release lease of " + node + ": " + e.getMessage());
+        }
+    }
+
+    private void reapExpired() throws IOException {
+        Set<String> nodes = new HashSet<>();
+        try (Stream<Path> dirs = Files.list(claimedRoot)) {
+            dirs.filter(Files::isDirectory).forEach(dir -> nodes.add(dir.getFileName().toString()));
+        }
+        try (Stream<Path> leases = Files.list(leasesDir)) {
+            leases.map(lease -> lease.getFileName().toString()).filter(name -> !name.startsWith(".")).forEach(nodes::add);
+        }
+        nodes.remove(node);
+        observed.keySet().retainAll(nodes);
+
+        long now = System.nanoTime();
+        for (String other : nodes) {
+            String stamp;
+            try {
+                stamp = Files.readString(leasesDir.resolve(other));
+            } catch (IOException e) {
+                stamp = "";
+            }
+            Observation observation = observed.get(other);
+            if (observation == null || !observation.stamp.equals(stamp)) {
+                observed.put(other, new Observation(stamp, now));
+                continue;
+            }
+            if (now - observation.since < expiryNanos) {
+                continue;
+            }
+
+            Path dir = claimedRoot.resolve(other);
+            List<Path> orphans = Files.isDirectory(dir) ? listDecks(dir) : List.of();
+            LOGGER.warning("Worker " + other + " has not renewed its lease for " + (now - observation.since) / 1_000_000_000L
+                    + " s; requeueing its " + orphans.size() + " decks");
+            for (Path deck : orphans) {
+                requeue(deck, "worker " + other + " stopped responding", true);
+            }
+            observed.remove(other);
+            try {
+                Files.deleteIfExists(dir);
+                Files.deleteIfExists(leasesDir.resolve(other));
+            } catch (IOException e) {
+                // Files other than decks in its directory, or the worker came back; tried again next time
+                LOGGER.fine("Could not remove " + other + " from the queue: " + e.getMessage());
+            }
+        }
+    }
+
+    // Moves a claimed deck back to the inbox, or to failed/ once it has been abandoned too many times, which
+    // keeps a deck that crashes every worker from going round forever. Orderly stops do not count.
+    private void requeue(Path deck, String reason, boolean abandoned) {
+        String fileName = deck.getFileName().toString();
+        int requeues = countRequeues(fileName);
+        try {
+            if (abandoned && requeues >= maxRequeues) {
+                Files.move(deck, failedDir.resolve(fileName), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                Files.writeString(failedDir.resolve(fileName + ".error.txt"),
+                        "Abandoned after " + requeues + " requeues; last: " + reason);
+                clearRequeues(fileName);
+                LOGGER.warning("Gave up on " + fileName + " after " + requeues + " requeues (" + reason + ")");
+            } else {
+                Files.move(deck, inbox.resolve(fileName), StandardCopyOption.ATOMIC_MOVE);
+                if (abandoned) {
+                    markRequeued(fileName);
+                }
+                LOGGER.info("Requeued " + fileName + " (" + reason + ")");
+            }
+        } catch (NoSuchFileException e) {
+            // Another worker requeued it first
+        } catch (IOException e) {
+            LOGGER.warning("Could not requeue " + deck + ": " + e.getMessage());
+        }
+    }
+
+    // Each requeue of a deck is a marker file of its own in requeues/<deck>/, created by the worker whose move
+    // succeeded, so workers on different machines never overwrite each other's count.
+    private void markRequeued(String fileName) throws IOException {
+        Path markers = requeuesDir.resolve(fileName);
+        Files.createDirectories(markers);
+        Files.createFile(markers.resolve(node + "-" + UUID.randomUUID()));
+    }
+
+    private int countRequeues(String fileName) {
+        Path markers = requeuesDir.resolve(fileName);
+        if (!Files.isDirectory(markers)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.list(markers)) {
+            return (int) files.count();
+        } catch (IOException e) {
+            LOGGER.warning("Could not count requeues of " + fileName + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private void clearRequeues(String fileName) throws IOException {
+        Path markers = requeuesDir.resolve(fileName);
+        if (!Files.isDirectory(markers)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(markers)) {
+            for (Path marker : files.collect(Collectors.toList())) {
+                Files.deleteIfExists(marker);
+            }
+        }
+        try {
+            Files.deleteIfExists(markers);
+        } catch (DirectoryNotEmptyException e) {
+            // Another worker requeued it again in the meantime
+        }
+    }
+
+    private static List<Path> listDecks(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(BatchCli::isDeck).sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.powerpoint.expander;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Client-side throttle for one API provider, shared by every thread that calls it. Requests wait for a
+// concurrency slot and for the requests/min and tokens/min buckets, and all of them pause when the server
+// asks for it (Retry-After or an exhausted rate-limit header). The concurrency limit is adjusted AIMD-style:
+// it grows by one after a full window of successes and is halved when the provider pushes back.
+public class RateLimiter {
+    private static final Logger LOGGER = Logger.getLogger(RateLimiter.class.getName());
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final long DECREASE_INTERVAL_MILLIS = 1000;
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|s|m|h)");
+    private static final Map<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+
+    private final String provider;
+    private final int maxConcurrency;
+    private final double requestsPerMilli;
+    private final double tokensPerMilli;
+    private final double requestCapacity;
+    private final double tokenCapacity;
+
+    private double requestBucket;
+    private double tokenBucket;
+    private long lastRefill = nowMillis();
+    private long pausedUntil;
+    private long lastDecrease;
+    private int limit;
+    private int inFlight;
+    private int successesSinceIncrease;
+
+    public class Permit {
+        private boolean released;
+
+        private Permit() {
+        }
+
+        // The request got a response that is not a throttling error.
+        public void success() {
+            release(false);
+        }
+
+        // The provider is overloaded or rate limiting (429, 503, ...). retryAfterMillis is 0 if it gave no hint.
+        public void throttled(long retryAfterMillis) {
+            if (retryAfterMillis > 0) {
+                pauseFor(retryAfterMillis);
+            }
+            release(true);
+        }
+
+        // The request failed for another reason; the concurrency limit is left alone.
+        public void failed() {
+            synchronized (RateLimiter.this) {
+                if (!released) {
+                    released = true;
+                    inFlight--;
+                    RateLimiter.this.notifyAll();
+                }
+            }
+        }
+
+        private void release(boolean throttled) {
+            synchronized (RateLimiter.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                inFlight--;
+                if (throttled) {
+                    decrease();
+                } else if (++successesSinceIncrease >= limit && limit < maxConcurrency) {
+                    limit++;
+                    successesSinceIncrease = 0;
+                }
+                RateLimiter.this.notifyAll();
+            }
+        }
+    }
+
+    RateLimiter(String provider, int maxConcurrency, int requestsPerMinute, int tokensPerMinute) {
+        this.provider = provider;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.limit = this.maxConcurrency;
+        this.requestCapacity = requestsPerMinute > 0 ? requestsPerMinute : Double.POSITIVE_INFINITY;
+        this.tokenCapacity = tokensPerMinute > 0 ? tokensPerMinute : Double.POSITIVE_INFINITY;
+        this.requestsPerMilli = requestsPerMinute / 60_000.0;
+        this.tokensPerMilli = tokensPerMinute / 60_000.0;
+        this.requestBucket = requestCapacity;
+        this.tokenBucket = tokenCapacity;
+    }
+
+    // One limiter per provider, configured from ratelimit.<provider>.* settings (0 means unlimited).
+    public static RateLimiter forProvider(String provider) {
+        return limiters.computeIfAbsent(provider, name -> {
+            RateLimiter limiter = new RateLimiter(name,
+                    Settings.getInt("ratelimit." + name + ".max.concurrency", 8),
+                    Settings.getInt("ratelimit." + name + ".requests.per.minute", 0),
+                    Settings.getInt("ratelimit." + name + ".tokens.per.minute", 0));
+            LOGGER.info("Rate limiter for " + name + ": " + limiter.getStats());
+            return limiter;
+        });
+    }
+
+    // Blocks until the request may be sent. tokens is the estimated cost against the tokens/min budget.
+    public synchronized Permit acquire(long tokens) throws InterruptedException {
+        double cost = Math.min(Math.max(0, tokens), tokenCapacity);
+        while (true) {
+            long now = nowMillis();
+            refill(now);
+            long waitMillis;
+            if (pausedUntil > now) {
+                waitMillis = pausedUntil - now;
+            } else if (inFlight >= limit) {
+                waitMillis = 0;
+            } else if (requestBucket < 1) {
+                waitMillis = (long) Math.ceil((1 - requestBucket) / requestsPerMilli);
+            } else if (tokenBucket < cost) {
+                waitMillis = (long) Math.ceil((cost - tokenBucket) / tokensPerMilli);
+            } else {
+                requestBucket -= 1;
+                tokenBucket -= cost;
+                inFlight++;
+                return new Permit();
+            }
+            if (waitMillis > 0) {
+                wait(waitMillis);
+            } else {
+                wait();
+            }
+        }
+    }
+
+    public synchronized void pauseFor(long millis) {
+        long until = nowMillis() + millis;
+        if (until > pausedUntil) {
+            pausedUntil = until;
+            LOGGER.warning(provider + " asked to slow down, pausing requests for " + millis + " ms");
+        }
+        notifyAll();
+    }
+
+    // Reads the usual rate-limit headers: a request or token budget that is exhausted pauses everyone until it resets.
+    public void observeHeaders(Function<String, String> header) {
+        long pause = 0;
+        if ("0".equals(header.apply("x-ratelimit-remaining-requests"))) {
+            pause = Math.max(pause, parseDurationMillis(header.apply("x-ratelimit-reset-requests")));
+        }
+        if ("0".equals(header.apply("x-ratelimit-remaining-tokens"))) {
+            pause = Math.max(pause, parseDurationMillis(header.apply("x-ratelimit-reset-tokens")));
+        }
+        if (pause > 0) {
+            pauseFor(pause);
+        }
+    }
+
+    private void decrease() {
+        long now = nowMillis();
+        // One burst of rejections counts as a single signal
+        if (now - lastDecrease >= DECREASE_INTERVAL_MILLIS) {
+            lastDecrease = now;
+            limit = Math.max(1, limit / 2);
+            successesSinceIncrease = 0;
+            LOGGER.warning(provider + " is throttling, concurrency limit lowered to " + limit);
+        }
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            requestBucket = Math.min(requestCapacity, requestBucket + elapsed * requestsPerMilli);
+            tokenBucket = Math.min(tokenCapacity, tokenBucket + elapsed * tokensPerMilli);
+            lastRefill = now;
+        }
+    }
+
+    public synchronized String getStats() {
+        return "concurrency " + inFlight + "/" + limit + " (max " + maxConcurrency + ")"
+                + (requestCapacity < Double.POSITIVE_INFINITY ? ", " + (int) requestCapacity + " requests/min" : "")
+                + (tokenCapacity < Double.POSITIVE_INFINITY ? ", " + (int) tokenCapacity + " tokens/min" : "");
+    }
+
+    // Status codes worth retrying: timeouts, rate limits and transient server errors.
+    public static boolean isRetryable(int statusCode) {
+        return statusCode == 408 || statusCode == 429 || statusCode >= 500 && statusCode != 501 && statusCode != 505;
+    }
+
+    // The codes that mean "too much load" rather than a broken request or a server bug.
+    public static boolean isThrottling(int statusCode) {
+        return statusCode == 429 || statusCode == 503 || statusCode == 529;
+    }
+
+    public static int getMaxRetries() {
+        return Math.max(0, Settings.getInt("http.max.retries", 4));
+    }
+
+    // Exponential backoff with full jitter: a random delay from 0 up to base * 2^(attempt - 1), capped, so clients
+    // throttled together spread their retries over the whole window instead of retrying in step.
+    public static long backoffMillis(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        return ThreadLocalRandom.current().nextLong(0, ceiling + 1);
+    }
+
+    // Retry-After is either a number of seconds or an HTTP date; returns 0 if absent or unreadable.
+    public static long parseRetryAfter(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, (long) (Double.parseDouble(value.trim()) * 1000));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toMillis());
+            } catch (Exception ignored) {
+                return 0;
+            }
+        }
+    }
+
+    // Parses durations such as "20ms", "1.5s" or "6m0s" as used by x-ratelimit-reset-* headers.
+    static long parseDurationMillis(String value) {
+        if (value == null) {
+            return 0;
+        }
+        Matcher matcher = DURATION_PART.matcher(value);
+        double millis = 0;
+        while (matcher.find()) {
+            double amount = Double.parseDouble(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "ms":
+                    millis += amount;
+                    break;
+                case "s":
+                    millis += amount * 1000;
+                    break;
+                case "m":
+                    millis += amount * 60_000;
+                    break;
+                default:
+                    millis += amount * 3_600_000;
+            }
+        }
+        return (long) Math.ceil(millis);
+    }
+
+    private static long nowMillis() {
+        return System.nanoTime() / 1_000_000;
+    }
+}
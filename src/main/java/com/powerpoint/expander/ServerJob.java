@@ -0,0 +1,300 @@
+package com.powerpoint.expander;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+// A parse, expand or narrate job submitted to the server: its parameters, state, progress events and
+// result. Events are kept for the life of the job, so a client that starts streaming late, or reconnects,
+// still gets the whole history. The work itself runs as a Job, which makes it cancellable.
+class ServerJob {
+    private static final Logger LOGGER = Logger.getLogger(ServerJob.class.getName());
+
+    enum Type { PARSE, EXPAND, NARRATE }
+
+    enum State { QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED }
+
+    final String id;
+    final String tenant;
+    final Type type;
+    final String name;
+    final Path dir;
+    final String model;
+    final int maxTokens;
+    final boolean chunked;
+    final long createdAt = System.currentTimeMillis();
+
+    private final List<JSONObject> events = new ArrayList<>();
+    private State state = State.QUEUED;
+    private Job job;
+    private JSONObject result;
+    private String error;
+    private long finishedAt;
+    private int slideCount;
+    private int expanded;
+    private int narrated;
+
+    ServerJob(String id, String tenant, Type type, String name, Path dir, String model, int maxTokens, boolean chunked) {
+        this.id = id;
+        this.tenant = tenant;
+        this.type = type;
+        this.name = name;
+        this.dir = dir;
+        this.model = model;
+        this.maxTokens = maxTokens;
+        this.chunked = chunked;
+        event("state", new JSONObject().put("state", State.QUEUED.name().toLowerCase(Locale.ROOT)));
+    }
+
+    File deckFile() {
+        return dir.resolve("deck.pptx").toFile();
+    }
+
+    Path audioDir() {
+        return dir.resolve("audio");
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized boolean isFinished() {
+        return state == State.COMPLETED || state == State.FAILED || state == State.CANCELLED;
+    }
+
+    synchronized long getFinishedAt() {
+        return finishedAt;
+    }
+
+    private synchronized void event(String type, JSONObject data) {
+        events.add(data.put("type", type).put("seq", events.size()));
+        notifyAll();
+    }
+
+    // Events from index from on, waiting up to timeoutMillis for at least one unless the job is over.
+    synchronized List<JSONObject> awaitEvents(int from, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (events.size() <= from && !isFinished()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            wait(remaining);
+        }
+        return new ArrayList<>(events.subList(Math.min(from, events.size()), events.size()));
+    }
+
+    synchronized JSONObject toJson(boolean withResult) {
+        JSONObject json = new JSONObject()
+                .put("id", id)
+                .put("type", type.name().toLowerCase(Locale.ROOT))
+                .put("name", name)
+                .put("state", state.name().toLowerCase(Locale.ROOT))
+                .put("model", model)
+                .put("maxTokens", maxTokens)
+                .put("chunked", chunked)
+                .put("createdAt", createdAt)
+                .put("progress", new JSONObject().put("slides", slideCount).put("expanded", expanded).put("narrated", narrated))
+                .put("events", events.size());
+        if (error != null) {
+            json.put("error", error);
+        }
+        if (withResult && result != null) {
+            json.put("result", result);
+        }
+        return json;
+    }
+
+    // Cancels a queued job at once and asks a running one to stop. Returns false if it was already over.
+    synchronized boolean cancel() {
+        if (isFinished()) {
+            return false;
+        }
+        if (state == State.QUEUED) {
+            finish(State.CANCELLED, null, null);
+        } else if (job != null) {
+            job.cancel();
+        }
+        return true;
+    }
+
+    void run() {
+        Job started;
+        // The journal is only opened for a job that was not cancelled while queued, and cancel() cannot
+        // slip in between, so every opened journal is closed by started.run below
+        synchronized (this) {
+            if (state != State.QUEUED) {
+                return;
+            }
+            try {
+                started = Job.start(deckFile(), type.name().toLowerCase(Locale.ROOT));
+            } catch (IOException e) {
+                finish(State.FAILED, "Could not start job: " + e.getMessage(), null);
+                return;
+            }
+            job = started;
+            state = State.RUNNING;
+        }
+        event("state", new JSONObject().put("state", "running"));
+
+        JSONObject output = null;
+        String failure = null;
+        try {
+            output = started.run(() -> {
+                switch (type) {
+                    case PARSE:
+                        return parse();
+                    case EXPAND:
+                        return expand(started);
+                    default:
+                        return narrate(started);
+                }
+            });
+        } catch (Exception e) {
+            failure = e.getMessage() != null ? e.getMessage() : e.toString();
+            if (!started.isCancelled()) {
+                LOGGER.warning("Job " + id + " of tenant " + tenant + " failed: " + failure);
+            }
+        }
+        synchronized (this) {
+            if (started.isCancelled()) {
+                finish(State.CANCELLED, null, null);
+            } else if (failure != null) {
+                finish(State.FAILED, failure, null);
+            } else {
+                finish(State.COMPLETED, null, output);
+            }
+        }
+    }
+
+    private void finish(State finalState, String failure, JSONObject output) {
+        state = finalState;
+        error = failure;
+        result = output;
+        finishedAt = System.currentTimeMillis();
+        if (output != null) {
+            try {
+                Files.writeString(dir.resolve("result.json"), output.toString(2));
+            } catch (IOException e) {
+                LOGGER.warning("Could not save result of job " + id + ": " + e.getMessage());
+            }
+        }
+        JSONObject data = new JSONObject().put("state", finalState.name().toLowerCase(Locale.ROOT));
+        if (failure != null) {
+            data.put("error", failure);
+        }
+        event("state", data);
+    }
+
+    private synchronized void setSlideCount(int count) {
+        slideCount = count;
+    }
+
+    private JSONObject parse() throws IOException {
+        List<SlideContent> slides = PowerPointParser.parseSlideText(deckFile());
+        setSlideCount(slides.size());
+        JSONArray slidesArray = new JSONArray();
+        for (int i = 0; i < slides.size(); i++) {
+            SlideContent slide = slides.get(i);
+            slidesArray.put(new JSONObject()
+                    .put("slide", i + 1)
+                    .put("slideId", slide.getSlideId())
+                    .put("text", slide.getText())
+                    .put("table", slide.getTable())
+                    .put("hasImage", slide.getImageHash() != null || slide.getImageUrl() != null));
+        }
+        return new JSONObject().put("slides", slidesArray);
+    }
+
+    private JSONObject expand(Job job) throws Exception {
+        String settingsHash = DeckManifest.settingsHash(model, maxTokens);
+        List<SlideContent> slides = new ArrayList<>();
+        PowerPointParser.parseSlides(deckFile(), (index, slide) -> {
+            Job.checkCancelled();
+            slides.add(slide);
+            job.recordParsed(index, slide);
+            OpenAIExpander.prefetchImageDescription(slide, index + 1, maxTokens, model);
+        });
+        setSlideCount(slides.size());
+        event("slides", new JSONObject().put("count", slides.size()));
+
+        // Every upload is a new file, so the manifest only serves this run; reuse across uploads comes from
+        // the shared expansion cache and image index
+        DeckManifest manifest = DeckManifest.load(deckFile());
+        // Every chunk is journaled as it finishes, so a cancelled job keeps the slides it already paid for
+        JSONObject response = new JSONObject(OpenAIExpander.expandDeck(manifest, slides, maxTokens, model, chunked,
+                (index, text) -> event("slide", new JSONObject().put("slide", index + 1).put("expandedContent", text)),
+                (index, text) -> job.recordExpanded(index, slides.get(index), settingsHash, text)));
+        if (response.has("error")) {
+            throw new IOException(response.getString("error"));
+        }
+
+        JSONArray slidesArray = response.getJSONArray("slides");
+        JSONArray output = new JSONArray();
+        for (int i = 0; i < slides.size(); i++) {
+            String text = i < slidesArray.length() ? slidesArray.getJSONObject(i).optString("expandedContent", "") : "";
+            output.put(new JSONObject().put("slide", i + 1).put("slideId", slides.get(i).getSlideId()).put("expandedContent", text));
+        }
+        synchronized (this) {
+            expanded = slides.size();
+        }
+        return new JSONObject().put("slides", output);
+    }
+
+    private JSONObject narrate(Job job) throws Exception {
+        Files.createDirectories(audioDir());
+        NarrationPipeline pipeline = new NarrationPipeline(job, deckFile(), audioDir(), maxTokens, model, new NarrationPipeline.Listener() {
+            @Override
+            public void onSlideCount(int count) {
+                setSlideCount(count);
+                event("slides", new JSONObject().put("count", count));
+            }
+
+            @Override
+            public void onExpanded(int index, String expandedContent) {
+                synchronized (ServerJob.this) {
+                    expanded++;
+                }
+                event("slide", new JSONObject().put("slide", index + 1).put("expandedContent", expandedContent));
+            }
+
+            @Override
+            public void onNarrated(int index, AudioBatch.Status status, Exception error) {
+                synchronized (ServerJob.this) {
+                    narrated++;
+                }
+                JSONObject data = new JSONObject().put("slide", index + 1).put("status", status.name().toLowerCase(Locale.ROOT));
+                if (status != AudioBatch.Status.FAILED) {
+                    data.put("audio", "/jobs/" + id + "/audio/" + (index + 1));
+                } else if (error != null) {
+                    data.put("error", error.getMessage());
+                }
+                event("audio", data);
+            }
+        });
+        NarrationPipeline.Result result = pipeline.run();
+
+        JSONArray output = new JSONArray();
+        for (int i = 0; i < result.expandedContents.size(); i++) {
+            output.put(new JSONObject().put("slide", i + 1).put("expandedContent", result.expandedContents.get(i))
+                    .put("audio", "/jobs/" + id + "/audio/" + (i + 1)));
+        }
+        JSONObject json = new JSONObject().put("slides", output).put("narrated", result.narrated).put("skipped", result.skipped)
+                .put("failed", result.failed);
+        if (result.failed > 0) {
+            throw new IOException(result.failed + " slides failed to narrate");
+        }
+        if (DeckTrack.isEnabled()) {
+            DeckTrack.assemble(audioDir(), result.expandedContents.size(), "deck");
+            json.put("track", "/jobs/" + id + "/audio");
+        }
+        return json;
+    }
+}
@@ -4,7 +4,9 @@ import javax.swing.*;
 
 import java.awt.*;
 import java.io.*;
+import java.util.List;
 import java.util.Properties;
+import java.util.stream.Collectors;
 import java.util.logging.Logger;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -87,6 +89,57 @@ public class Settings {
         properties.setProperty("elevenlabs.voice.id", "");
         properties.setProperty("cloudinary.url", "");
         properties.setProperty("system.prompt", DEFAULT_SYSTEM_PROMPT);
+        properties.setProperty("image.describe.parallelism", "4");
+        properties.setProperty("image.describe.timeout.seconds", "60");
+        properties.setProperty("expansion.chunked", "false");
+        properties.setProperty("expansion.parallelism", "4");
+        properties.setProperty("expansion.chunk.tokens", "3000");
+        properties.setProperty("expansion.chunk.slides", "5");
+        properties.setProperty("expansion.chunk.retries", "2");
+        properties.setProperty("expansion.streaming", "true");
+        properties.setProperty("cache.expansion.enabled", "true");
+        properties.setProperty("cache.expansion.max.mb", "50");
+        properties.setProperty("cache.images.enabled", "true");
+        properties.setProperty("parser.backend", "auto");
+        properties.setProperty("parser.streaming.threshold.mb", "100");
+        properties.setProperty("image.preprocess.enabled", "true");
+        properties.setProperty("image.max.dimension", "1024");
+        properties.setProperty("image.jpeg.quality", "80");
+        properties.setProperty("image.transport", "auto");
+        properties.setProperty("http.max.requests.per.host", "8");
+        properties.setProperty("http.max.idle.connections", "16");
+        properties.setProperty("http.keepalive.seconds", "300");
+        properties.setProperty("elevenlabs.streaming", "true");
+        properties.setProperty("tts.parallelism", "3");
+        properties.setProperty("pipeline.queue.capacity", "8");
+        properties.setProperty("cache.audio.enabled", "true");
+        properties.setProperty("cache.audio.max.mb", "500");
+        properties.setProperty("tts.chunk.chars", "1000");
+        properties.setProperty("tts.chunk.parallelism", "4");
+        properties.setProperty("audio.deck.track", "true");
+        properties.setProperty("batch.workers", "2");
+        properties.setProperty("http.max.retries", "4");
+        properties.setProperty("ratelimit.openai.max.concurrency", "8");
+        properties.setProperty("ratelimit.openai.requests.per.minute", "500");
+        properties.setProperty("ratelimit.openai.tokens.per.minute", "200000");
+        properties.setProperty("ratelimit.elevenlabs.max.concurrency", "4");
+        properties.setProperty("ratelimit.elevenlabs.requests.per.minute", "0");
+        properties.setProperty("ratelimit.elevenlabs.tokens.per.minute", "0");
+        properties.setProperty("ratelimit.cloudinary.max.concurrency", "8");
+        properties.setProperty("server.port", "8765");
+        properties.setProperty("server.bind", "127.0.0.1");
+        properties.setProperty("server.api.token", "");
+        properties.setProperty("server.workers", "4");
+        properties.setProperty("server.tenant.max.jobs", "2");
+        properties.setProperty("server.tenant.max.queued", "20");
+        properties.setProperty("server.max.upload.mb", "100");
+        properties.setProperty("server.job.retention.minutes", "60");
+        properties.setProperty("worker.heartbeat.seconds", "10");
+        properties.setProperty("worker.lease.expiry.seconds", "60");
+        properties.setProperty("worker.poll.seconds", "5");
+        properties.setProperty("worker.max.requeues", "3");
+        properties.setProperty("metrics.snapshot.seconds", "60");
+        properties.setProperty("metrics.snapshot.file", "");
     }
 
     public static void saveSettings() {
@@ -95,6 +148,10 @@ public class Settings {
             LOGGER.info("Saved settings to: " + SETTINGS_PATH);
         } catch (IOException e) {
             LOGGER.severe("Failed to save settings: " + e.getMessage());
+            // The batch, worker and server modes run without a display
+            if (GraphicsEnvironment.isHeadless()) {
+                return;
+            }
             JOptionPane.showMessageDialog(null,
                 "Failed to save settings: " + e.getMessage(),
                 "Settings Error",
@@ -102,6 +159,10 @@ public class Settings {
         }
     }
 
+    public static Path getAppDir() {
+        return APP_DIR;
+    }
+
     public static String get(String key) {
         String value = properties.getProperty(key, "");
         
@@ -112,6 +173,32 @@ public class Settings {
         return value;
     }
 
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key).trim();
+        if (value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Invalid number for setting " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key).trim();
+        return value.isEmpty() ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    // Keys starting with prefix, for settings grouped by a name such as server.tenants.<name>.token
+    public static List<String> getKeys(String prefix) {
+        return properties.stringPropertyNames().stream()
+                .filter(key -> key.startsWith(prefix))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
     public static void set(String key, String value) {
         // Special handling for cloudinary URL to ensure correct format
         if (key.equals("cloudinary.url")) {
@@ -155,8 +242,42 @@ public class Settings {
         
         tabbedPane.addTab("API Keys", new JScrollPane(apiPanel));
         
-        // Other Settings Tab (kept for future settings)
+        // Other Settings Tab
         JPanel otherPanel = new JPanel(new GridBagLayout());
+        GridBagConstraints otherGbc = new GridBagConstraints();
+        otherGbc.gridx = 0;
+        otherGbc.gridy = 0;
+        otherGbc.anchor = GridBagConstraints.WEST;
+        otherGbc.insets = new Insets(5, 5, 5, 5);
+
+        addSettingField(otherPanel, otherGbc, "Parallel image descriptions:", "image.describe.parallelism");
+        addSettingField(otherPanel, otherGbc, "Image description timeout (s):", "image.describe.timeout.seconds");
+        addSettingField(otherPanel, otherGbc, "Parallel chunks:", "expansion.parallelism");
+        addSettingField(otherPanel, otherGbc, "Chunk prompt tokens:", "expansion.chunk.tokens");
+        addSettingField(otherPanel, otherGbc, "Max slides per chunk:", "expansion.chunk.slides");
+        addSettingField(otherPanel, otherGbc, "Chunk retries:", "expansion.chunk.retries");
+        addSettingCheckBox(otherPanel, otherGbc, "Show slides while the response streams in", "expansion.streaming", true);
+        addSettingCheckBox(otherPanel, otherGbc, "Cache expanded slides", "cache.expansion.enabled", true);
+        addSettingField(otherPanel, otherGbc, "Expansion cache size (MB):", "cache.expansion.max.mb");
+        addSettingCheckBox(otherPanel, otherGbc, "Reuse uploaded images and descriptions", "cache.images.enabled", true);
+        addSettingField(otherPanel, otherGbc, "Parser (auto, poi, streaming):", "parser.backend");
+        addSettingField(otherPanel, otherGbc, "Streaming parser above (MB):", "parser.streaming.threshold.mb");
+        addSettingCheckBox(otherPanel, otherGbc, "Shrink images before upload", "image.preprocess.enabled", true);
+        addSettingField(otherPanel, otherGbc, "Max image size (px):", "image.max.dimension");
+        addSettingField(otherPanel, otherGbc, "JPEG quality (1-100):", "image.jpeg.quality");
+        addSettingField(otherPanel, otherGbc, "Images (auto, cloudinary, inline):", "image.transport");
+        addSettingCheckBox(otherPanel, otherGbc, "Use ElevenLabs streaming endpoint", "elevenlabs.streaming", true);
+        addSettingField(otherPanel, otherGbc, "Parallel audio generation:", "tts.parallelism");
+        addSettingField(otherPanel, otherGbc, "Audio chunk size (characters):", "tts.chunk.chars");
+        addSettingField(otherPanel, otherGbc, "Parallel audio chunks:", "tts.chunk.parallelism");
+        addSettingCheckBox(otherPanel, otherGbc, "Cache generated audio", "cache.audio.enabled", true);
+        addSettingCheckBox(otherPanel, otherGbc, "Assemble one narration track per deck", "audio.deck.track", true);
+        addSettingField(otherPanel, otherGbc, "HTTP retries:", "http.max.retries");
+        addSettingField(otherPanel, otherGbc, "OpenAI requests per minute:", "ratelimit.openai.requests.per.minute");
+        addSettingField(otherPanel, otherGbc, "OpenAI tokens per minute:", "ratelimit.openai.tokens.per.minute");
+        addSettingField(otherPanel, otherGbc, "OpenAI concurrent requests:", "ratelimit.openai.max.concurrency");
+        addSettingField(otherPanel, otherGbc, "ElevenLabs concurrent requests:", "ratelimit.elevenlabs.max.concurrency");
+        addSettingField(otherPanel, otherGbc, "Audio cache size (MB):", "cache.audio.max.mb");
         tabbedPane.addTab("Other", new JScrollPane(otherPanel));
         
         // Buttons
@@ -166,16 +287,9 @@ public class Settings {
         JButton resetButton = new JButton("Reset to Defaults");
 
         saveButton.addActionListener(e -> {
-            // Save API keys
-            Component[] components = apiPanel.getComponents();
-            for (Component comp : components) {
-                if (comp instanceof JTextField) {
-                    JTextField field = (JTextField) comp;
-                    if (field.getName() != null) {
-                        set(field.getName(), field.getText());
-                    }
-                }
-            }
+            // Save API keys and other settings
+            saveFields(apiPanel);
+            saveFields(otherPanel);
             saveSettings();
             dialog.dispose();
         });
@@ -200,6 +314,33 @@ public class Settings {
         dialog.setVisible(true);
     }
 
+    private static void saveFields(JPanel panel) {
+        for (Component comp : panel.getComponents()) {
+            if (comp instanceof JTextField) {
+                JTextField field = (JTextField) comp;
+                if (field.getName() != null) {
+                    set(field.getName(), field.getText());
+                }
+            } else if (comp instanceof JCheckBox) {
+                JCheckBox checkBox = (JCheckBox) comp;
+                if (checkBox.getName() != null) {
+                    set(checkBox.getName(), String.valueOf(checkBox.isSelected()));
+                }
+            }
+        }
+    }
+
+    private static void addSettingCheckBox(JPanel panel, GridBagConstraints gbc, String label, String key, boolean defaultValue) {
+        JCheckBox checkBox = new JCheckBox(label, getBoolean(key, defaultValue));
+        checkBox.setName(key);
+
+        gbc.gridwidth = 3;
+        panel.add(checkBox, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy++;
+    }
+
     private static void addSettingField(JPanel panel, GridBagConstraints gbc, String label, String key) {
         panel.add(new JLabel(label), gbc);
         
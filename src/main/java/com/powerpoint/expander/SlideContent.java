@@ -4,8 +4,20 @@ public class SlideContent {
     private String text;
     private String table;
     private String imageUrl;
+    private String imageHash;
+    private String imageDescription;
+    // The p:sldId id from presentation.xml, which stays the same when slides are moved or edited
+    private String slideId;
 
     // Getters and setters
+    public String getSlideId() {
+        return slideId;
+    }
+
+    public void setSlideId(String slideId) {
+        this.slideId = slideId;
+    }
+
     public String getText() {
         return text;
     }
@@ -29,4 +41,20 @@ public class SlideContent {
     public void setImageUrl(String imageUrl) {
         this.imageUrl = imageUrl;
     }
+
+    public String getImageHash() {
+        return imageHash;
+    }
+
+    public void setImageHash(String imageHash) {
+        this.imageHash = imageHash;
+    }
+
+    public String getImageDescription() {
+        return imageDescription;
+    }
+
+    public void setImageDescription(String imageDescription) {
+        this.imageDescription = imageDescription;
+    }
 }
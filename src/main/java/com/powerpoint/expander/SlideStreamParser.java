@@ -0,0 +1,154 @@
+package com.powerpoint.expander;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Incremental parser for {"slides": [{"expandedContent": "..."}, ...]} responses, fed with the fragments of a
+// streamed chat completion as they arrive. Each slide is reported as soon as its expandedContent string is
+// closed, without waiting for the rest of the document; everything else in the JSON is skipped.
+public class SlideStreamParser {
+    public interface Listener {
+        void onSlide(int index, String expandedContent);
+    }
+
+    // One open object or array. Objects remember the key whose value is being read, arrays the element index.
+    private static class Frame {
+        final boolean array;
+        String key;
+        boolean expectingKey = true;
+        int index;
+
+        Frame(boolean array) {
+            this.array = array;
+        }
+    }
+
+    private final Listener listener;
+    private final StringBuilder text = new StringBuilder();
+    private final List<Frame> stack = new ArrayList<>();
+    private StringBuilder string;
+    private boolean escaped;
+    private int unicodeDigits = -1;
+    private int unicodeValue;
+    private int slideCount;
+
+    public SlideStreamParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void feed(String fragment) {
+        text.append(fragment);
+        for (int i = 0; i < fragment.length(); i++) {
+            char c = fragment.charAt(i);
+            if (string != null) {
+                readStringChar(c);
+                continue;
+            }
+            Frame top = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+            switch (c) {
+                case '{':
+                    stack.add(new Frame(false));
+                    break;
+                case '[':
+                    stack.add(new Frame(true));
+                    break;
+                case '}':
+                case ']':
+                    if (top != null) {
+                        stack.remove(stack.size() - 1);
+                    }
+                    break;
+                case '"':
+                    string = new StringBuilder();
+                    break;
+                case ',':
+                    if (top != null && top.array) {
+                        top.index++;
+                    } else if (top != null) {
+                        top.expectingKey = true;
+                    }
+                    break;
+                case ':':
+                    if (top != null && !top.array) {
+                        top.expectingKey = false;
+                    }
+                    break;
+                default:
+                    // Whitespace, numbers and literals carry nothing we need
+            }
+        }
+    }
+
+    private void readStringChar(char c) {
+        if (unicodeDigits >= 0) {
+            unicodeValue = unicodeValue * 16 + Character.digit(c, 16);
+            if (++unicodeDigits == 4) {
+                string.append((char) unicodeValue);
+                unicodeDigits = -1;
+            }
+        } else if (escaped) {
+            escaped = false;
+            switch (c) {
+                case 'n':
+                    string.append('\n');
+                    break;
+                case 't':
+                    string.append('\t');
+                    break;
+                case 'r':
+                    string.append('\r');
+                    break;
+                case 'b':
+                    string.append('\b');
+                    break;
+                case 'f':
+                    string.append('\f');
+                    break;
+                case 'u':
+                    unicodeDigits = 0;
+                    unicodeValue = 0;
+                    break;
+                default:
+                    string.append(c);
+            }
+        } else if (c == '\\') {
+            escaped = true;
+        } else if (c == '"') {
+            String value = string.toString();
+            string = null;
+            endString(value);
+        } else {
+            string.append(c);
+        }
+    }
+
+    private void endString(String value) {
+        Frame top = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+        if (top == null || top.array) {
+            return;
+        }
+        if (top.expectingKey) {
+            top.key = value;
+            return;
+        }
+        // Only the path slides[i].expandedContent is of interest
+        if (stack.size() == 3 && "expandedContent".equals(top.key)) {
+            Frame root = stack.get(0);
+            Frame slides = stack.get(1);
+            if (!root.array && "slides".equals(root.key) && slides.array) {
+                slideCount = Math.max(slideCount, slides.index + 1);
+                listener.onSlide(slides.index, value);
+            }
+        }
+    }
+
+    // Number of slides reported so far.
+    public int getSlideCount() {
+        return slideCount;
+    }
+
+    // The raw response received so far.
+    public String getText() {
+        return text.toString();
+    }
+}
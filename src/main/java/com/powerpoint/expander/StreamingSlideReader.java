@@ -0,0 +1,444 @@
+package com.powerpoint.expander;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+// Low-memory alternative to XMLSlideShow for very large decks. The .pptx package is read as a zip file
+// and each slide part is walked with StAX, pulling out only text runs, table cells and picture
+// relationships. Pictures are hashed straight from the zip stream and only read into memory when they
+// actually have to be uploaded; other media such as embedded video is never touched. The output matches
+// PowerPointParser's XMLSlideShow path: top-level shapes only, the last table and picture on a slide win.
+class StreamingSlideReader {
+    private static final Logger LOGGER = Logger.getLogger(StreamingSlideReader.class.getName());
+    private static final String PML_NS = "http://schemas.openxmlformats.org/presentationml/2006/main";
+    private static final String DML_NS = "http://schemas.openxmlformats.org/drawingml/2006/main";
+    private static final String MC_NS = "http://schemas.openxmlformats.org/markup-compatibility/2006";
+    private static final String REL_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String TABLE_URI = "http://schemas.openxmlformats.org/drawingml/2006/table";
+    private static final String OFFICE_DOCUMENT_TYPE = "/officeDocument";
+
+    private final ZipFile zip;
+    private final XMLInputFactory xmlInputFactory;
+    private final Map<String, String> imageUrlsByHash;
+    private final boolean resolveImages;
+
+    private StreamingSlideReader(ZipFile zip, Map<String, String> imageUrlsByHash, boolean resolveImages) {
+        this.zip = zip;
+        this.imageUrlsByHash = imageUrlsByHash;
+        this.resolveImages = resolveImages;
+        this.xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    static void read(File file, PowerPointParser.SlideListener listener, Map<String, String> imageUrlsByHash,
+                     boolean resolveImages) throws IOException {
+        try (ZipFile zip = new ZipFile(file)) {
+            new StreamingSlideReader(zip, imageUrlsByHash, resolveImages).readSlides(listener);
+        } catch (ZipException e) {
+            LOGGER.severe("Error parsing PowerPoint file: " + e.getMessage());
+            throw new IOException("The PowerPoint file appears to be corrupted or is not a valid .pptx file. Please ensure you're using a valid PowerPoint file.", e);
+        } catch (XMLStreamException e) {
+            LOGGER.severe("Error parsing PowerPoint file: " + e.getMessage());
+            throw new IOException("Error reading PowerPoint file. The file might be corrupted or in an unsupported format.", e);
+        }
+    }
+
+    private void readSlides(PowerPointParser.SlideListener listener) throws IOException, XMLStreamException {
+        String presentationPart = null;
+        for (Relationship rel : readRelationships("_rels/.rels").values()) {
+            if (rel.type.endsWith(OFFICE_DOCUMENT_TYPE)) {
+                presentationPart = resolve("", rel.target);
+            }
+        }
+        if (presentationPart == null) {
+            throw new IOException("The PowerPoint file appears to be corrupted or is not a valid .pptx file. Please ensure you're using a valid PowerPoint file.");
+        }
+
+        Map<String, Relationship> presentationRels = readRelationships(relationshipsPartFor(presentationPart));
+        List<String> slideParts = new ArrayList<>();
+        List<String> slideIds = new ArrayList<>();
+        for (Map.Entry<String, String> slideId : readSlideIds(presentationPart).entrySet()) {
+            Relationship rel = presentationRels.get(slideId.getKey());
+            if (rel != null) {
+                slideParts.add(resolve(directoryOf(presentationPart), rel.target));
+                slideIds.add(slideId.getValue());
+            }
+        }
+
+        LOGGER.info("PowerPoint file contains " + slideParts.size() + " slides");
+        listener.onStart(slideParts.size());
+        for (int i = 0; i < slideParts.size(); i++) {
+            LOGGER.info("Parsing slide " + (i + 1));
+            PipelineEvents.SlideParse event = new PipelineEvents.SlideParse();
+            event.begin();
+            SlideContent content = readSlide(slideParts.get(i), i + 1);
+            content.setSlideId(slideIds.get(i));
+            LOGGER.info("Finished parsing slide " + (i + 1));
+            PowerPointParser.commitSlideParse(event, i + 1, "streaming", content);
+            listener.onSlide(i, content);
+        }
+    }
+
+    // Relationship id to the slide's persistent p:sldId id, in presentation order.
+    private Map<String, String> readSlideIds(String presentationPart) throws IOException, XMLStreamException {
+        Map<String, String> relIds = new LinkedHashMap<>();
+        try (InputStream in = openPart(presentationPart)) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT
+                            && PML_NS.equals(reader.getNamespaceURI()) && "sldId".equals(reader.getLocalName())) {
+                        relIds.put(reader.getAttributeValue(REL_NS, "id"), reader.getAttributeValue(null, "id"));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return relIds;
+    }
+
+    private SlideContent readSlide(String slidePart, int slideNumber) throws IOException, XMLStreamException {
+        SlideContent content = new SlideContent();
+        SlideState state = new SlideState(slidePart, slideNumber, content);
+        try (InputStream in = openPart(slidePart)) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            try {
+                reader.nextTag();
+                while (nextChild(reader)) {
+                    if (is(reader, PML_NS, "cSld")) {
+                        while (nextChild(reader)) {
+                            if (is(reader, PML_NS, "spTree")) {
+                                readShapes(reader, state);
+                            } else {
+                                skip(reader);
+                            }
+                        }
+                    } else {
+                        skip(reader);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        content.setText(state.text.toString().trim());
+        return content;
+    }
+
+    // Reads the shapes that are direct children of the current element; nested group shapes are skipped.
+    private void readShapes(XMLStreamReader reader, SlideState state) throws IOException, XMLStreamException {
+        while (nextChild(reader)) {
+            if (is(reader, PML_NS, "sp")) {
+                LOGGER.info("Parsing text shape in slide " + state.slideNumber);
+                state.text.append(readShapeText(reader)).append("\n");
+            } else if (is(reader, PML_NS, "graphicFrame")) {
+                String table = readGraphicFrame(reader, state.slideNumber);
+                if (table != null) {
+                    LOGGER.info("Parsing table in slide " + state.slideNumber);
+                    state.content.setTable(table);
+                }
+            } else if (is(reader, PML_NS, "pic")) {
+                LOGGER.info("Parsing image in slide " + state.slideNumber);
+                readPicture(reader, state);
+            } else if (is(reader, MC_NS, "AlternateContent")) {
+                readAlternateContent(reader, state);
+            } else {
+                skip(reader);
+            }
+        }
+    }
+
+    // Like XMLSlideShow, only the first choice is used and the shapes inside its first element are read.
+    private void readAlternateContent(XMLStreamReader reader, SlideState state) throws IOException, XMLStreamException {
+        boolean choiceRead = false;
+        while (nextChild(reader)) {
+            if (!choiceRead && is(reader, MC_NS, "Choice")) {
+                choiceRead = true;
+                if (nextChild(reader)) {
+                    readShapes(reader, state);
+                    while (nextChild(reader)) {
+                        skip(reader);
+                    }
+                }
+            } else {
+                skip(reader);
+            }
+        }
+    }
+
+    private String readShapeText(XMLStreamReader reader) throws XMLStreamException {
+        String text = "";
+        while (nextChild(reader)) {
+            if (is(reader, PML_NS, "txBody")) {
+                text = readTextBody(reader);
+            } else {
+                skip(reader);
+            }
+        }
+        return text;
+    }
+
+    // Paragraphs are separated by newlines and line breaks become newlines, as in XSLFTextShape.getText().
+    private String readTextBody(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        while (nextChild(reader)) {
+            if (!is(reader, DML_NS, "p")) {
+                skip(reader);
+                continue;
+            }
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            while (nextChild(reader)) {
+                if (is(reader, DML_NS, "r") || is(reader, DML_NS, "fld")) {
+                    while (nextChild(reader)) {
+                        if (is(reader, DML_NS, "t")) {
+                            text.append(reader.getElementText());
+                        } else {
+                            skip(reader);
+                        }
+                    }
+                } else if (is(reader, DML_NS, "br")) {
+                    text.append('\n');
+                    skip(reader);
+                } else {
+                    skip(reader);
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    // Returns the table text for a table frame, or null for charts, diagrams and other objects.
+    private String readGraphicFrame(XMLStreamReader reader, int slideNumber) throws XMLStreamException {
+        String table = null;
+        while (nextChild(reader)) {
+            if (!is(reader, DML_NS, "graphic")) {
+                skip(reader);
+                continue;
+            }
+            while (nextChild(reader)) {
+                if (is(reader, DML_NS, "graphicData") && TABLE_URI.equals(reader.getAttributeValue(null, "uri"))) {
+                    while (nextChild(reader)) {
+                        if (is(reader, DML_NS, "tbl")) {
+                            table = readTable(reader, slideNumber);
+                        } else {
+                            skip(reader);
+                        }
+                    }
+                } else {
+                    skip(reader);
+                }
+            }
+        }
+        return table;
+    }
+
+    private String readTable(XMLStreamReader reader, int slideNumber) throws XMLStreamException {
+        PipelineEvents.TableParse event = new PipelineEvents.TableParse();
+        event.begin();
+        StringBuilder tableContent = new StringBuilder();
+        int rows = 0;
+        while (nextChild(reader)) {
+            if (!is(reader, DML_NS, "tr")) {
+                skip(reader);
+                continue;
+            }
+            rows++;
+            boolean firstCell = true;
+            while (nextChild(reader)) {
+                if (!is(reader, DML_NS, "tc")) {
+                    skip(reader);
+                    continue;
+                }
+                if (!firstCell) {
+                    tableContent.append(" | ");
+                }
+                firstCell = false;
+                while (nextChild(reader)) {
+                    if (is(reader, DML_NS, "txBody")) {
+                        tableContent.append(readTextBody(reader));
+                    } else {
+                        skip(reader);
+                    }
+                }
+            }
+            tableContent.append("\n");
+        }
+        String text = tableContent.toString().trim();
+        PowerPointParser.commitTableParse(event, slideNumber, rows, text);
+        return text;
+    }
+
+    private void readPicture(XMLStreamReader reader, SlideState state) throws IOException, XMLStreamException {
+        String embedId = null;
+        while (nextChild(reader)) {
+            if (is(reader, PML_NS, "blipFill")) {
+                while (nextChild(reader)) {
+                    if (is(reader, DML_NS, "blip")) {
+                        embedId = reader.getAttributeValue(REL_NS, "embed");
+                    }
+                    skip(reader);
+                }
+            } else {
+                skip(reader);
+            }
+        }
+
+        Relationship rel = embedId == null ? null : state.relationships().get(embedId);
+        if (rel == null || rel.external) {
+            LOGGER.warning("Skipping picture without embedded image data in slide " + state.slideNumber);
+            return;
+        }
+        String mediaPart = resolve(directoryOf(state.slidePart), rel.target);
+        ZipEntry entry = zip.getEntry(mediaPart);
+        if (entry == null) {
+            LOGGER.warning("Picture part " + mediaPart + " is missing from the package");
+            return;
+        }
+
+        String imageHash;
+        try (InputStream in = zip.getInputStream(entry)) {
+            imageHash = ContentHash.sha256(in);
+        }
+        state.content.setImageHash(imageHash);
+        if (!resolveImages) {
+            return;
+        }
+        state.content.setImageUrl(PowerPointParser.getImageUrl(imageHash, () -> {
+            try (InputStream in = zip.getInputStream(entry)) {
+                return in.readAllBytes();
+            }
+        }, imageUrlsByHash, state.slideNumber));
+    }
+
+    private Map<String, Relationship> readRelationships(String relsPart) throws IOException, XMLStreamException {
+        Map<String, Relationship> relationships = new HashMap<>();
+        if (zip.getEntry(relsPart) == null) {
+            return relationships;
+        }
+        try (InputStream in = openPart(relsPart)) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && "Relationship".equals(reader.getLocalName())) {
+                        Relationship rel = new Relationship();
+                        rel.type = String.valueOf(reader.getAttributeValue(null, "Type"));
+                        rel.target = String.valueOf(reader.getAttributeValue(null, "Target"));
+                        rel.external = "External".equals(reader.getAttributeValue(null, "TargetMode"));
+                        relationships.put(reader.getAttributeValue(null, "Id"), rel);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return relationships;
+    }
+
+    private InputStream openPart(String partName) throws IOException {
+        ZipEntry entry = zip.getEntry(partName);
+        if (entry == null) {
+            throw new IOException("Error reading PowerPoint file. Missing package part: " + partName);
+        }
+        return zip.getInputStream(entry);
+    }
+
+    private static String relationshipsPartFor(String partName) {
+        return directoryOf(partName) + "_rels/" + partName.substring(partName.lastIndexOf('/') + 1) + ".rels";
+    }
+
+    private static String directoryOf(String partName) {
+        return partName.substring(0, partName.lastIndexOf('/') + 1);
+    }
+
+    // Resolves a relationship target against the source part's directory into a zip entry name.
+    private static String resolve(String baseDirectory, String target) {
+        String path = target.startsWith("/") ? target.substring(1) : baseDirectory + target;
+        Deque<String> segments = new ArrayDeque<>();
+        for (String segment : path.split("/")) {
+            if (segment.equals("..")) {
+                segments.pollLast();
+            } else if (!segment.isEmpty() && !segment.equals(".")) {
+                segments.addLast(segment);
+            }
+        }
+        return String.join("/", segments);
+    }
+
+    // Moves to the next child element of the current element, or returns false at its end tag.
+    private static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            }
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Skips from the current start tag to its matching end tag.
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static boolean is(XMLStreamReader reader, String namespace, String localName) {
+        return localName.equals(reader.getLocalName()) && namespace.equals(reader.getNamespaceURI());
+    }
+
+    private static class Relationship {
+        String type;
+        String target;
+        boolean external;
+    }
+
+    private class SlideState {
+        final String slidePart;
+        final int slideNumber;
+        final SlideContent content;
+        final StringBuilder text = new StringBuilder();
+        private Map<String, Relationship> relationships;
+
+        SlideState(String slidePart, int slideNumber, SlideContent content) {
+            this.slidePart = slidePart;
+            this.slideNumber = slideNumber;
+            this.content = content;
+        }
+
+        Map<String, Relationship> relationships() throws IOException, XMLStreamException {
+            if (relationships == null) {
+                relationships = readRelationships(relationshipsPartFor(slidePart));
+            }
+            return relationships;
+        }
+    }
+}
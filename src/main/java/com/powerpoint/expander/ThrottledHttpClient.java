@@ -0,0 +1,248 @@
+package com.powerpoint.expander;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+// Wraps the shared java.net.http client so the OpenAI library's requests go through the provider's
+// RateLimiter, and rate limits and server errors are retried with backoff before the library sees them.
+class ThrottledHttpClient extends HttpClient {
+    private static final Logger LOGGER = Logger.getLogger(ThrottledHttpClient.class.getName());
+    private static final int BYTES_PER_TOKEN = 4;
+
+    // Requests sent from a thread inside capture(), so its caller can cancel them
+    private static final ThreadLocal<List<Future<?>>> captured = new ThreadLocal<>();
+
+    private final HttpClient delegate;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "http-throttled");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ThrottledHttpClient(HttpClient delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler) throws IOException, InterruptedException {
+        String provider = HttpTransport.providerFor(request.uri().getHost());
+        if (provider == null) {
+            return delegate.send(request, responseBodyHandler);
+        }
+        RateLimiter limiter = RateLimiter.forProvider(provider);
+        // Prompt size is only known as bytes here, so the tokens/min budget is charged about four bytes per token
+        long bodyBytes = Math.max(0, request.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).orElse(0L));
+        long cost = bodyBytes / BYTES_PER_TOKEN;
+        int maxRetries = RateLimiter.getMaxRetries();
+        for (int attempt = 1; ; attempt++) {
+            Job.checkCancelled();
+            RateLimiter.Permit permit = limiter.acquire(cost);
+            HttpResponse<T> response;
+            try {
+                response = delegate.send(request, releasingWhenRead(responseBodyHandler, permit));
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                permit.failed();
+                throw e;
+            }
+            limiter.observeHeaders(name -> response.headers().firstValue(name).orElse(null));
+            // The body handler decides how the response is read, so only a declared length can be counted
+            Metrics.counter(provider + ".bytes.sent").add(bodyBytes);
+            response.headers().firstValueAsLong("Content-Length")
+                    .ifPresent(length -> Metrics.counter(provider + ".bytes.received").add(length));
+            int code = response.statusCode();
+            long retryAfter = RateLimiter.parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null));
+            if (RateLimiter.isThrottling(code)) {
+                permit.throttled(retryAfter);
+            }
+            if (!RateLimiter.isRetryable(code) || attempt > maxRetries) {
+                return response;
+            }
+
+            discard(response.body());
+            permit.success();
+            long delay = retryAfter > 0 ? retryAfter : RateLimiter.backoffMillis(attempt);
+            Metrics.counter(provider + ".retries").increment();
+            LOGGER.warning(provider + " returned " + code + ", retrying in " + delay + " ms (attempt " + (attempt + 1) + " of " + (maxRetries + 1) + ")");
+            Thread.sleep(delay);
+        }
+    }
+
+    // send() returns as soon as the headers are in when the body is streamed, so a response other than a
+    // throttling error keeps its permit until the body has been read, has failed or was closed early.
+    private static <T> HttpResponse.BodyHandler<T> releasingWhenRead(HttpResponse.BodyHandler<T> handler, RateLimiter.Permit permit) {
+        return responseInfo -> {
+            HttpResponse.BodySubscriber<T> subscriber = handler.apply(responseInfo);
+            return RateLimiter.isThrottling(responseInfo.statusCode()) ? subscriber : new PermitReleasingSubscriber<>(subscriber, permit);
+        };
+    }
+
+    private static class PermitReleasingSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private final HttpResponse.BodySubscriber<T> delegate;
+        private final RateLimiter.Permit permit;
+
+        PermitReleasingSubscriber(HttpResponse.BodySubscriber<T> delegate, RateLimiter.Permit permit) {
+            this.delegate = delegate;
+            this.permit = permit;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return delegate.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            delegate.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    subscription.request(n);
+                }
+
+                @Override
+                public void cancel() {
+                    subscription.cancel();
+                    permit.success();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            delegate.onNext(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            permit.failed();
+            delegate.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            permit.success();
+            delegate.onComplete();
+        }
+    }
+
+    // Runs a call into the OpenAI library and collects the requests it sends from this thread. Cancelling the
+    // library's future does not reach the HTTP exchange behind it; cancelling these does.
+    static <T> T capture(List<Future<?>> requests, Supplier<T> call) {
+        List<Future<?>> previous = captured.get();
+        captured.set(requests);
+        try {
+            return call.get();
+        } finally {
+            captured.set(previous);
+        }
+    }
+
+    // Runs the blocking send on its own thread; cancelling the returned future interrupts it, which also
+    // stops any wait for the rate limiter. Cancelling the current job cancels the future.
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler) {
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        Runnable removeCancelHook = Job.onCancel(() -> result.cancel(true));
+        List<Future<?>> capture = captured.get();
+        if (capture != null) {
+            capture.add(result);
+        }
+        Future<?> task = executor.submit(Job.propagate(() -> {
+            try {
+                result.complete(send(request, responseBodyHandler));
+            } catch (InterruptedException e) {
+                result.completeExceptionally(new InterruptedIOException("Request interrupted"));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }));
+        result.whenComplete((response, error) -> {
+            removeCancelHook.run();
+            if (result.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler,
+                                                            HttpResponse.PushPromiseHandler<T> pushPromiseHandler) {
+        return sendAsync(request, responseBodyHandler);
+    }
+
+    private static void discard(Object body) {
+        if (body instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) body).close();
+            } catch (Exception e) {
+                LOGGER.fine("Could not close discarded response body: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public Optional<CookieHandler> cookieHandler() {
+        return delegate.cookieHandler();
+    }
+
+    @Override
+    public Optional<Duration> connectTimeout() {
+        return delegate.connectTimeout();
+    }
+
+    @Override
+    public Redirect followRedirects() {
+        return delegate.followRedirects();
+    }
+
+    @Override
+    public Optional<ProxySelector> proxy() {
+        return delegate.proxy();
+    }
+
+    @Override
+    public SSLContext sslContext() {
+        return delegate.sslContext();
+    }
+
+    @Override
+    public SSLParameters sslParameters() {
+        return delegate.sslParameters();
+    }
+
+    @Override
+    public Optional<Authenticator> authenticator() {
+        return delegate.authenticator();
+    }
+
+    @Override
+    public Version version() {
+        return delegate.version();
+    }
+
+    @Override
+    public Optional<Executor> executor() {
+        return delegate.executor();
+    }
+}
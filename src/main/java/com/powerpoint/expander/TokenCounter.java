@@ -0,0 +1,78 @@
+package com.powerpoint.expander;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingRegistry;
+import com.knuddels.jtokkit.api.EncodingType;
+import java.util.logging.Logger;
+
+// Counts tokens locally with the same BPE vocabulary as the model (o200k for gpt-4o models, cl100k for
+// gpt-3.5/gpt-4), and knows each model's context window and output limit so requests can be sized to fit.
+public class TokenCounter {
+    private static final Logger LOGGER = Logger.getLogger(TokenCounter.class.getName());
+    private static final EncodingRegistry registry = Encodings.newLazyEncodingRegistry();
+
+    // Chat formatting adds a few tokens per message and to prime the reply
+    private static final int TOKENS_PER_MESSAGE = 3;
+    private static final int REPLY_PRIMING_TOKENS = 3;
+    // The JSON schema response format is sent with every expansion request
+    private static final int RESPONSE_FORMAT_TOKENS = 100;
+    private static final int SAFETY_MARGIN_TOKENS = 256;
+
+    private static Encoding encodingFor(String model) {
+        String name = model.toLowerCase();
+        if (name.startsWith("gpt-3.5") || name.startsWith("gpt-4-") || name.equals("gpt-4")) {
+            return registry.getEncoding(EncodingType.CL100K_BASE);
+        }
+        return registry.getEncoding(EncodingType.O200K_BASE);
+    }
+
+    public static int count(String model, String text) {
+        return text == null || text.isEmpty() ? 0 : encodingFor(model).countTokensOrdinary(text);
+    }
+
+    // Prompt tokens of a system + user chat request, including the message framing and response format.
+    public static int countPrompt(String model, String systemPrompt, String userPrompt) {
+        return count(model, systemPrompt) + count(model, userPrompt) + 2 * TOKENS_PER_MESSAGE + REPLY_PRIMING_TOKENS
+                + RESPONSE_FORMAT_TOKENS;
+    }
+
+    public static int contextWindow(String model) {
+        String name = model.toLowerCase();
+        if (name.startsWith("gpt-3.5")) {
+            return 16_385;
+        }
+        if (name.startsWith("gpt-4o") || name.startsWith("gpt-4-turbo")) {
+            return 128_000;
+        }
+        return 8_192;
+    }
+
+    public static int maxOutputTokens(String model) {
+        String name = model.toLowerCase();
+        if (name.startsWith("gpt-4o")) {
+            return 16_384;
+        }
+        return 4_096;
+    }
+
+    // Tokens left in the context window for a prompt of this size, before applying the model's output limit.
+    public static int remainingContext(String model, int promptTokens) {
+        return contextWindow(model) - promptTokens - SAFETY_MARGIN_TOKENS;
+    }
+
+    // The largest prompt that still leaves room for the requested completion.
+    public static int promptBudget(String model, int requestedCompletionTokens) {
+        return remainingContext(model, 0) - Math.min(requestedCompletionTokens, maxOutputTokens(model));
+    }
+
+    // Caps the requested completion at the model's output limit and at whatever the prompt leaves free.
+    public static int completionBudget(String model, int promptTokens, int requestedCompletionTokens) {
+        int budget = Math.min(requestedCompletionTokens, Math.min(maxOutputTokens(model), remainingContext(model, promptTokens)));
+        if (budget < requestedCompletionTokens) {
+            LOGGER.info("Limiting completion to " + budget + " tokens (requested " + requestedCompletionTokens + ", prompt "
+                    + promptTokens + ", context " + contextWindow(model) + ")");
+        }
+        return budget;
+    }
+}
@@ -0,0 +1,127 @@
+package com.powerpoint.expander;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.apache.poi.sl.usermodel.PictureData;
+import org.apache.poi.xslf.usermodel.XMLSlideShow;
+import org.apache.poi.xslf.usermodel.XSLFPictureData;
+import org.apache.poi.xslf.usermodel.XSLFSlide;
+import org.apache.poi.xslf.usermodel.XSLFTable;
+import org.apache.poi.xslf.usermodel.XSLFTableRow;
+import org.apache.poi.xslf.usermodel.XSLFTextBox;
+import org.apache.poi.xslf.usermodel.XSLFTextParagraph;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PowerPointParserTest {
+    @TempDir
+    static Path tempDir;
+
+    private static File deck;
+
+    @BeforeAll
+    static void createDeck() throws IOException {
+        deck = tempDir.resolve("fixture.pptx").toFile();
+        try (XMLSlideShow ppt = new XMLSlideShow()) {
+            XSLFSlide title = ppt.createSlide();
+            XSLFTextBox heading = title.createTextBox();
+            heading.setAnchor(new Rectangle(50, 50, 600, 80));
+            heading.setText("Quarterly Results");
+            XSLFTextBox bullets = title.createTextBox();
+            bullets.setAnchor(new Rectangle(50, 150, 600, 200));
+            bullets.setText("Revenue grew 12%");
+            XSLFTextParagraph second = bullets.addNewTextParagraph();
+            second.addNewTextRun().setText("Costs fell in every region");
+
+            XSLFSlide tableSlide = ppt.createSlide();
+            tableSlide.createTextBox().setText("Regional breakdown");
+            XSLFTable table = tableSlide.createTable();
+            table.setAnchor(new Rectangle(50, 150, 600, 200));
+            String[][] cells = {{"Region", "Revenue"}, {"North", "4.2"}, {"South", "3.1"}};
+            for (String[] values : cells) {
+                XSLFTableRow row = table.addRow();
+                for (String value : values) {
+                    row.addCell().setText(value);
+                }
+            }
+
+            XSLFSlide pictureSlide = ppt.createSlide();
+            pictureSlide.createTextBox().setText("Growth chart");
+            XSLFPictureData picture = ppt.addPicture(pngBytes(), PictureData.PictureType.PNG);
+            pictureSlide.createPicture(picture).setAnchor(new Rectangle(100, 100, 200, 100));
+
+            ppt.createSlide();
+
+            try (FileOutputStream out = new FileOutputStream(deck)) {
+                ppt.write(out);
+            }
+        }
+    }
+
+    private static byte[] pngBytes() throws IOException {
+        BufferedImage image = new BufferedImage(40, 20, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.ORANGE);
+        graphics.fillRect(0, 0, 20, 20);
+        graphics.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    @AfterEach
+    void resetBackend() {
+        Settings.set("parser.backend", "auto");
+    }
+
+    private static List<SlideContent> parseWith(String backend) throws IOException {
+        Settings.set("parser.backend", backend);
+        return PowerPointParser.parseSlideText(deck);
+    }
+
+    @Test
+    void streamingReaderMatchesPoi() throws IOException {
+        List<SlideContent> poi = parseWith("poi");
+        List<SlideContent> streaming = parseWith("streaming");
+
+        assertEquals(4, poi.size());
+        assertEquals(poi.size(), streaming.size());
+        for (int i = 0; i < poi.size(); i++) {
+            SlideContent expected = poi.get(i);
+            SlideContent actual = streaming.get(i);
+            String slide = "slide " + (i + 1);
+            assertEquals(expected.getSlideId(), actual.getSlideId(), slide + " id");
+            assertEquals(expected.getText(), actual.getText(), slide + " text");
+            assertEquals(expected.getTable(), actual.getTable(), slide + " table");
+            assertEquals(expected.getImageHash(), actual.getImageHash(), slide + " image hash");
+            assertEquals(expected.getImageUrl(), actual.getImageUrl(), slide + " image url");
+        }
+    }
+
+    @Test
+    void poiReaderExtractsFixtureContent() throws IOException {
+        List<SlideContent> slides = parseWith("poi");
+
+        assertEquals("Quarterly Results\nRevenue grew 12%\nCosts fell in every region", slides.get(0).getText());
+        assertNull(slides.get(0).getTable());
+        assertNotNull(slides.get(1).getTable());
+        assertNotNull(slides.get(2).getImageHash());
+        assertNull(slides.get(2).getImageUrl());
+        assertEquals("", slides.get(3).getText());
+    }
+}
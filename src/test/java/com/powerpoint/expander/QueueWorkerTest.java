@@ -0,0 +1,124 @@
+package com.powerpoint.expander;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Starts several worker JVMs on one queue directory, kills one of them while it holds a deck, and checks that
+// the survivors requeue it and every deck ends up in done/ or failed/ exactly once.
+class QueueWorkerTest {
+    private static final int WORKER_PROCESSES = 3;
+    private static final int DECKS = 8;
+    private static final long DECK_MILLIS = 1500;
+
+    @TempDir
+    Path tempDir;
+
+    private final List<Process> processes = new ArrayList<>();
+
+    // A worker process whose decks take DECK_MILLIS each and need no API, with short leases
+    public static void main(String[] args) {
+        Settings.set("openai.api.key", "test");
+        Settings.set("worker.heartbeat.seconds", "1");
+        Settings.set("worker.lease.expiry.seconds", "3");
+        Settings.set("worker.poll.seconds", "1");
+        int code = QueueWorker.run(args, (deck, targetDir) -> {
+            BatchCli.DeckResult result = new BatchCli.DeckResult();
+            try {
+                Thread.sleep(DECK_MILLIS);
+                Job.checkCancelled();
+                result.slides = 1;
+            } catch (Exception e) {
+                result.failed = true;
+                result.error = String.valueOf(e.getMessage());
+            }
+            return result;
+        });
+        System.exit(code);
+    }
+
+    @AfterEach
+    void stopWorkers() {
+        processes.forEach(Process::destroyForcibly);
+    }
+
+    private Process startWorker(Path queue, String node) throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Path home = tempDir.resolve("home-" + node);
+        Files.createDirectories(home);
+        Process process = new ProcessBuilder(java, "-Djava.awt.headless=true", "-Duser.home=" + home,
+                "-cp", System.getProperty("java.class.path"), QueueWorkerTest.class.getName(),
+                "--node", node, "--workers", "1", "--no-audio", "--exit-when-empty", queue.toString())
+                .redirectErrorStream(true)
+                .redirectOutput(tempDir.resolve(node + ".log").toFile())
+                .start();
+        processes.add(process);
+        return process;
+    }
+
+    private static List<String> deckNames(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(BatchCli::isDeck).map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void killedWorkerDecksAreFinishedExactlyOnce() throws Exception {
+        Path queue = tempDir.resolve("queue");
+        Path inbox = queue.resolve("inbox");
+        Files.createDirectories(inbox);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < DECKS; i++) {
+            String name = "deck" + i + ".pptx";
+            Files.write(inbox.resolve(name), new byte[] {'P', 'K'});
+            expected.add(name);
+        }
+
+        List<Process> survivors = new ArrayList<>();
+        for (int i = 1; i < WORKER_PROCESSES; i++) {
+            survivors.add(startWorker(queue, "node" + i));
+        }
+        Process victim = startWorker(queue, "victim");
+        Path victimClaims = queue.resolve("claimed").resolve("victim");
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (deckNames(victimClaims).isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline, "the victim never claimed a deck");
+            Thread.sleep(50);
+        }
+        // Killed without running its shutdown hook, as if the machine went away mid-deck
+        victim.destroyForcibly().waitFor();
+
+        for (Process survivor : survivors) {
+            assertTrue(survivor.waitFor(90, TimeUnit.SECONDS), "a surviving worker did not finish the queue");
+        }
+
+        List<String> finished = new ArrayList<>(deckNames(queue.resolve("done")));
+        finished.addAll(deckNames(queue.resolve("failed")));
+        finished.sort(null);
+        assertEquals(expected, finished, "every deck in done/ or failed/ exactly once");
+        assertEquals(List.of(), deckNames(inbox));
+        assertEquals(List.of(), deckNames(victimClaims));
+        boolean reaped = false;
+        for (int i = 1; i < WORKER_PROCESSES; i++) {
+            reaped |= Files.readString(tempDir.resolve("node" + i + ".log")).contains("Worker victim has not renewed its lease");
+        }
+        assertTrue(reaped, "a survivor requeued the victim's deck");
+        File requeues = queue.resolve("requeues").toFile();
+        assertEquals(0, requeues.list().length, "requeue markers are cleared once decks are finished");
+    }
+}
@@ -0,0 +1,74 @@
+package com.powerpoint.expander;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class SlideStreamParserTest {
+    // Escapes, a surrogate pair, nested objects with the same key, extra fields and numbers
+    private static final String RESPONSE = "{\"note\": \"not a slide\", \"slides\": [\n"
+            + "  {\"expandedContent\": \"First \\\"quoted\\\" line\\nsecond line\", \"tokens\": 12},\n"
+            + "  {\"meta\": {\"expandedContent\": \"nested, ignored\"}, \"expandedContent\": \"Caf\\u00e9 \\\\ path\\/to \\ud83d\\ude00\"},\n"
+            + "  {\"expandedContent\": \"Tabs\\tand [brackets] {braces}, commas: colons\"}\n"
+            + "], \"done\": true}";
+
+    private static final List<String> EXPECTED = List.of(
+            "First \"quoted\" line\nsecond line",
+            "Café \\ path/to 😀",
+            "Tabs\tand [brackets] {braces}, commas: colons");
+
+    private static List<String> parse(List<String> fragments) {
+        List<String> slides = new ArrayList<>();
+        SlideStreamParser parser = new SlideStreamParser((index, expandedContent) -> {
+            assertEquals(slides.size(), index);
+            slides.add(expandedContent);
+        });
+        for (String fragment : fragments) {
+            parser.feed(fragment);
+        }
+        assertEquals(String.join("", fragments), parser.getText());
+        assertEquals(slides.size(), parser.getSlideCount());
+        return slides;
+    }
+
+    @Test
+    void parsesWholeResponse() {
+        assertEquals(EXPECTED, parse(List.of(RESPONSE)));
+    }
+
+    @Test
+    void parsesResponseSplitAtEveryBoundary() {
+        for (int split = 0; split <= RESPONSE.length(); split++) {
+            List<String> fragments = List.of(RESPONSE.substring(0, split), RESPONSE.substring(split));
+            assertEquals(EXPECTED, parse(fragments), "split at " + split);
+        }
+    }
+
+    @Test
+    void parsesResponseSplitAtEveryPairOfBoundaries() {
+        for (int first = 0; first <= RESPONSE.length(); first++) {
+            for (int second = first; second <= RESPONSE.length(); second++) {
+                List<String> fragments = List.of(RESPONSE.substring(0, first), RESPONSE.substring(first, second),
+                        RESPONSE.substring(second));
+                assertEquals(EXPECTED, parse(fragments), "split at " + first + " and " + second);
+            }
+        }
+    }
+
+    @Test
+    void parsesOneCharacterAtATime() {
+        List<String> fragments = new ArrayList<>();
+        for (int i = 0; i < RESPONSE.length(); i++) {
+            fragments.add(RESPONSE.substring(i, i + 1));
+        }
+        assertEquals(EXPECTED, parse(fragments));
+    }
+
+    @Test
+    void reportsEachSlideBeforeTheResponseEnds() {
+        int cut = RESPONSE.indexOf("\"tokens\"");
+        assertEquals(EXPECTED.subList(0, 1), parse(List.of(RESPONSE.substring(0, cut))));
+    }
+}